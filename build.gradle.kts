@@ -170,6 +170,11 @@ kover {
 tasks {
     test {
         useJUnitPlatform()
+        // Tests cover (and report) the hot path instrumentation, unless it's explicitly turned off.
+        environment(
+            "HOT_PATH_INSTRUMENTATION",
+            providers.environmentVariable("HOT_PATH_INSTRUMENTATION").getOrElse("True")
+        )
     }
 
     wrapper {
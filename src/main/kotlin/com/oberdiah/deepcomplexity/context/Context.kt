@@ -2,6 +2,7 @@ package com.oberdiah.deepcomplexity.context
 
 import com.intellij.psi.PsiType
 import com.oberdiah.deepcomplexity.evaluation.Expr
+import com.oberdiah.deepcomplexity.evaluation.ExprPool
 import com.oberdiah.deepcomplexity.evaluation.LValue
 import com.oberdiah.deepcomplexity.evaluation.VarsExpr
 import com.oberdiah.deepcomplexity.staticAnalysis.VarsIndicator
@@ -92,6 +93,18 @@ class Context private constructor(
 
     val returnValue: Expr<*>? get() = dynamicVars.returnValue
 
+    /**
+     * Every expression this context holds on to, e.g. for promoting out of an [ExprPool.Session].
+     */
+    fun referencedExprs(): List<Expr<*>> = inner.referencedExprs()
+
+    /**
+     * Swaps every one of our [referencedExprs] for whatever [operation] gives back, which must be
+     * structurally identical. See [ExprPool.Session.promote].
+     */
+    fun mapReferencedExprs(operation: (Expr<*>) -> Expr<*>): Context =
+        Context(inner.mapReferencedExprs(operation), thisType)
+
     /**
      * Just grabs from the inner's dynamicVars.
      */
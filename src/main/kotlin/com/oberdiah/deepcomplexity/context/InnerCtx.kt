@@ -65,7 +65,7 @@ class InnerCtx private constructor(
 
     init {
         if (dynamicVars == null) {
-            require(staticExpr.allSubExprsOfType<VarsExpr>().none { it.isDynamic }) {
+            require(!staticExpr.summary.containsDynamicVars) {
                 "Static expression contains dynamic references, but dynamicVars is null!"
             }
         }
@@ -87,11 +87,21 @@ class InnerCtx private constructor(
      */
     fun grabDynamicVars(): Vars? = dynamicVars
 
-    fun resolveUsing(vars: Vars): InnerCtx = InnerCtx(
-        vars.resolveKnownVariables(staticExpr),
-        dynamicVars?.resolveUsing(vars)
+    fun referencedExprs(): List<Expr<*>> = listOf(staticExpr) + (dynamicVars?.referencedExprs() ?: emptyList())
+
+    fun mapReferencedExprs(operation: (Expr<*>) -> Expr<*>): InnerCtx = InnerCtx(
+        operation(staticExpr).castTo(staticExpr.ind),
+        dynamicVars?.mapReferencedExprs(operation)
     )
 
+    fun resolveUsing(vars: Vars): InnerCtx {
+        val resolver = vars.resolver()
+        return InnerCtx(
+            resolver.resolve(staticExpr),
+            dynamicVars?.resolveUsing(resolver)
+        )
+    }
+
     val keys: Set<MethodProcessingKey> = staticExpr.allSubExprsOfType<VarsExpr>().flatMap {
         getVarsFromVarsExpr(it).keys
     }.toSet()
@@ -5,6 +5,7 @@ import com.intellij.psi.PsiLocalVariable
 import com.intellij.psi.PsiParameter
 import com.intellij.psi.PsiVariable
 import com.oberdiah.deepcomplexity.evaluation.ConstExpr
+import com.oberdiah.deepcomplexity.evaluation.Expr
 import com.oberdiah.deepcomplexity.evaluation.LeafExpr
 import com.oberdiah.deepcomplexity.evaluation.VariableExpr
 import com.oberdiah.deepcomplexity.staticAnalysis.Indicator
@@ -25,6 +26,24 @@ sealed interface MethodProcessingKey {
     fun shouldBeStripped(lifetimeToStrip: Lifetime): Boolean =
         isPlaceholder() || this.lifetime.ordinal <= lifetimeToStrip.ordinal
 
+    /**
+     * Any expressions this key holds on to.
+     */
+    fun referencedExprs(): List<Expr<*>> = when (this) {
+        is QualifiedFieldKey -> listOf(qualifier)
+        else -> emptyList()
+    }
+
+    /**
+     * This key with each of its [referencedExprs] swapped for whatever [operation] gives back, which must
+     * be structurally identical.
+     */
+    fun mapReferencedExprs(operation: (Expr<*>) -> Expr<*>): MethodProcessingKey = when (this) {
+        @Suppress("UNCHECKED_CAST")
+        is QualifiedFieldKey -> copy(qualifier = operation(qualifier) as LeafExpr<HeapMarker>)
+        else -> this
+    }
+
     fun isPlaceholder(): Boolean {
         return when (this) {
             is QualifiedFieldKey -> this.qualifier is ConstExpr && this.qualifier.isPlaceholder
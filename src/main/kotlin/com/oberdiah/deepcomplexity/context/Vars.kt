@@ -19,18 +19,66 @@ data class Vars(
      * Retains all entries that satisfy the given predicate.
      */
     fun filterKeys(operation: (MethodProcessingKey) -> Boolean) = Vars(map.filterKeys(operation))
-    fun resolveUsing(vars: Vars): Vars =
-        mapExpressions(ExprTreeRebuilder.ExprReplacerWithKey { _, e -> vars.resolveKnownVariables(e) })
+    fun resolveUsing(vars: Vars): Vars = resolveUsing(vars.resolver())
+
+    fun resolveUsing(resolver: Resolver): Vars =
+        mapExpressions(ExprTreeRebuilder.ExprReplacerWithKey { _, e -> resolver.resolve(e) })
 
     fun mapExpressions(operation: ExprTreeRebuilder.ExprReplacerWithKey): Vars =
         Vars(map.mapValues { (key, expr) -> operation.replace(key, expr) })
 
-    fun <T : Any> resolveKnownVariables(expr: Expr<T>): Expr<T> =
-        expr.rewriteTypeInTreeSameType<VariableExpr<*>> { varExpr ->
-            varExpr.resolve(this)
-        }.rewriteTypeInTreeSameType<VarsExpr> { varsExpr ->
-            varsExpr.map { vars -> vars.resolveUsing(this) }
-        }.optimise()
+    /**
+     * A Bloom filter of our keys, to compare against [ExprSummary.keyBloom].
+     */
+    private val keyBloom: Long by lazy {
+        map.keys.fold(0L) { bloom, key -> bloom or ExprSummary.bloomBitFor(key) }
+    }
+
+    fun <T : Any> resolveKnownVariables(expr: Expr<T>): Expr<T> = resolver().resolve(expr)
+
+    fun resolver(): Resolver = Resolver(this)
+
+    /**
+     * Resolves expressions using [vars]: known variables are substituted in, static [VarsExpr]s are resolved
+     * in turn, and the result is optimised, all in a single fused traversal.
+     *
+     * The rewrite caches are shared between every expression it's given, so sub-DAGs shared between those
+     * expressions, which are everywhere after a [Context.combine], are only resolved once.
+     * Hold on to one for as long as you're resolving against the same [vars], and no longer.
+     */
+    class Resolver(private val vars: Vars) {
+        private val pipeline = ExprTreeRebuilder.RewritePipeline(
+            listOf(
+                ExprTreeRebuilder.RewriteStage.ofType<VariableExpr<*>>(
+                    // Unqualified variables we don't have a value for resolve to themselves, so subtrees
+                    // that only reference keys we definitely don't have can be left alone.
+                    skipSubtree = {
+                        !it.summary.containsQualifiedVariable && !it.summary.mayReferenceAnyOf(vars.keyBloom)
+                    }
+                ) { varExpr ->
+                    varExpr.resolve(vars)
+                },
+                ExprTreeRebuilder.RewriteStage.ofType<VarsExpr> { varsExpr ->
+                    varsExpr.map { it.resolveUsing(this) }
+                },
+                ExprTreeRebuilder.RewriteStage.simplify(),
+            )
+        )
+
+        fun <T : Any> resolve(expr: Expr<T>): Expr<T> = pipeline.rewrite(expr)
+    }
+
+    /**
+     * Every expression held by this set of variables, both in the values and the keys.
+     */
+    fun referencedExprs(): List<Expr<*>> = map.keys.flatMap { it.referencedExprs() } + map.values
+
+    /**
+     * Swaps every one of our [referencedExprs], in keys and values alike, for whatever [operation] gives back,
+     * which must be structurally identical.
+     */
+    fun mapReferencedExprs(operation: (Expr<*>) -> Expr<*>): Vars =
+        Vars(map.entries.associate { (key, expr) -> key.mapReferencedExprs(operation) to operation(expr) })
 
     fun stack(other: Vars): Vars =
         other.map.entries.fold(this) { updatingThis, (key, expr) ->
@@ -0,0 +1,60 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.settings.Settings
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * How much work a single evaluation is allowed to do before it starts widening instead of working
+ * things out properly. Shared by every assistant descended from the same [EvaluatorAssistant.createInitial],
+ * including any on other threads.
+ *
+ * Running out doesn't fail the evaluation; every expression evaluated after that point just evaluates to
+ * every value its type can hold. See [WideningMetrics] for how often that's happening.
+ */
+class AnalysisBudget(
+    /**
+     * Zero or less for no limit.
+     */
+    val maxMillis: Long,
+    val maxNodes: Long,
+    /**
+     * Bundles with more variances than this are collapsed down to the set of values they could take.
+     */
+    val maxBundleWidth: Int,
+) {
+    companion object {
+        fun fromSettings(): AnalysisBudget = AnalysisBudget(
+            Settings.evaluationTimeBudgetMillis,
+            Settings.evaluationNodeBudget,
+            Settings.maxBundleWidth,
+        )
+    }
+
+    private val deadline = System.nanoTime() + maxMillis * 1_000_000
+    private val nodesEvaluated = AtomicLong()
+
+    /**
+     * Once set, stays set. Anything evaluated after this has been widened somewhere below, so shouldn't be
+     * kept beyond this evaluation.
+     */
+    @Volatile
+    var isExhausted = false
+        private set
+
+    /**
+     * Takes one node's worth of budget, returning false if there wasn't any left.
+     */
+    fun tryTakeNode(): Boolean {
+        if (nodesEvaluated.incrementAndGet() > maxNodes) {
+            isExhausted = true
+            WideningMetrics.outOfNodes.increment()
+            return false
+        }
+        if (maxMillis > 0 && System.nanoTime() - deadline > 0) {
+            isExhausted = true
+            WideningMetrics.outOfTime.increment()
+            return false
+        }
+        return true
+    }
+}
@@ -0,0 +1,126 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.evaluation.ExprEvaluate.CacheKey
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
+
+/**
+ * A bounded cache of evaluated [Bundle]s that outlives any single evaluation, sitting underneath the
+ * per-run cache in [EvaluatorAssistant].
+ *
+ * Keys hold interned expressions, so a hit is only ever for the same canonical expression under equal
+ * constraints; entries for expressions that have since been edited away just age out. Each entry is weighed
+ * by how many variances its bundle has, and the least recently used entries are evicted once the total
+ * goes over [maxWeight].
+ *
+ * Only expressions from the global pool should be put in here. Anything from an [ExprPool.Session] would
+ * never be hit again once the session closed, and would keep the session's garbage alive until evicted.
+ */
+class EvaluationCache(private val maxWeight: Long) {
+    private class Entry(val bundle: Bundle<*>, val weight: Int)
+
+    // Access-ordered, so iteration starts from the least recently used entry.
+    private val entries = LinkedHashMap<CacheKey, Entry>(16, 0.75f, true)
+    private var totalWeight = 0L
+
+    /**
+     * Bundles depend on more than just the key; if the settings they were evaluated under change, none
+     * of them can be trusted any more.
+     */
+    private var filledUnder = Settings.overflowBehaviour
+
+    private var hits = 0L
+    private var misses = 0L
+    private var insertions = 0L
+    private var rejections = 0L
+    private var evictions = 0L
+    private var evictedWeight = 0L
+
+    @Synchronized
+    fun get(key: CacheKey): Bundle<*>? {
+        invalidateIfSettingsChanged()
+
+        val entry = entries[key]
+        if (entry == null) {
+            misses++
+        } else {
+            hits++
+        }
+        return entry?.bundle
+    }
+
+    @Synchronized
+    fun put(key: CacheKey, bundle: Bundle<*>) {
+        invalidateIfSettingsChanged()
+
+        // An empty bundle still costs us an entry.
+        val weight = maxOf(bundle.varianceCount, 1)
+        if (weight > maxWeight) {
+            rejections++
+            return
+        }
+
+        entries.put(key, Entry(bundle, weight))?.let { totalWeight -= it.weight }
+        totalWeight += weight
+        insertions++
+
+        val iterator = entries.values.iterator()
+        while (totalWeight > maxWeight && iterator.hasNext()) {
+            val evicted = iterator.next()
+            iterator.remove()
+            totalWeight -= evicted.weight
+            evictions++
+            evictedWeight += evicted.weight
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        totalWeight = 0
+    }
+
+    private fun invalidateIfSettingsChanged() {
+        if (filledUnder != Settings.overflowBehaviour) {
+            clear()
+            filledUnder = Settings.overflowBehaviour
+        }
+    }
+
+    data class Snapshot(
+        val hits: Long,
+        val misses: Long,
+        val insertions: Long,
+        val rejections: Long,
+        val evictions: Long,
+        val evictedWeight: Long,
+        val size: Int,
+        val weight: Long,
+        val maxWeight: Long,
+    ) {
+        val hitRatio: Double get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+
+        override fun toString(): String = buildString {
+            appendLine("Evaluation cache:")
+            appendLine("\tHits: $hits, misses: $misses (${"%.1f".format(hitRatio * 100)}% hit ratio)")
+            appendLine("\tHolding $size bundles, weighing $weight of $maxWeight")
+            appendLine("\tInserted $insertions, evicted $evictions weighing $evictedWeight")
+            if (rejections > 0) {
+                appendLine("\tToo heavy to cache at all: $rejections")
+            }
+        }
+    }
+
+    @Synchronized
+    fun snapshot(): Snapshot = Snapshot(
+        hits = hits,
+        misses = misses,
+        insertions = insertions,
+        rejections = rejections,
+        evictions = evictions,
+        evictedWeight = evictedWeight,
+        size = entries.size,
+        weight = totalWeight,
+        maxWeight = maxWeight,
+    )
+}
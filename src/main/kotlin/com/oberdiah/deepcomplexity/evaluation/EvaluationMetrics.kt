@@ -0,0 +1,173 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
+import com.oberdiah.deepcomplexity.utilities.HotPath
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * What a single evaluation did and where its time went. One is created with each
+ * [EvaluatorAssistant.createInitial] and shared by every assistant derived from it, including those on
+ * other threads, so everything in here is a [LongAdder] or similar.
+ *
+ * Code that has no assistant to hand (e.g. [Bundle.binaryMap]) records through [time], which finds the
+ * evaluation it's part of through a thread-local set up by [recordingInto]. Outside of an evaluation that's
+ * a single thread-local read.
+ */
+class EvaluationMetrics {
+    /**
+     * A section with a [hotPathOp] also feeds what it measures into [HotPath], rather than both timing it.
+     */
+    enum class Section(val label: String, val hotPathOp: HotPath.Op? = null) {
+        GET_CONSTRAINTS("ExprConstrain.getConstraints", HotPath.Op.GET_CONSTRAINTS),
+        LOOP_SOLVE("LoopSolver.evaluateTarget"),
+        BINARY_MAP("Bundle.binaryMap"),
+        COLLAPSE("NumberVariances.collapse"),
+    }
+
+    internal val lookups = LongAdder()
+    internal val hits = LongAdder()
+    internal val sharedHits = LongAdder()
+    internal val constraintLookups = LongAdder()
+    internal val constraintHits = LongAdder()
+
+    /**
+     * Sub-evaluations [ParallelEvaluator] handed off to another task.
+     */
+    internal val forks = LongAdder()
+
+    private val evaluatedByKind = ConcurrentHashMap<Class<*>, LongAdder>()
+    private val peakBundleWidth = LongAccumulator(Math::max, 0)
+
+    private val sectionNanos = Array(Section.entries.size) { LongAdder() }
+    private val sectionCalls = Array(Section.entries.size) { LongAdder() }
+
+    internal fun recordEvaluated(expr: Expr<*>, bundle: Bundle<*>) {
+        evaluatedByKind.computeIfAbsent(expr.javaClass) { LongAdder() }.increment()
+        peakBundleWidth.accumulate(bundle.varianceCount.toLong())
+    }
+
+    internal fun recordSection(section: Section, nanos: Long) {
+        sectionNanos[section.ordinal].add(nanos)
+        sectionCalls[section.ordinal].increment()
+    }
+
+    /**
+     * The metrics a thread is currently recording into, and how deep into each section it is.
+     */
+    internal class Recording(val metrics: EvaluationMetrics) {
+        val depths = IntArray(Section.entries.size)
+    }
+
+    companion object {
+        internal val current = ThreadLocal<Recording?>()
+
+        /**
+         * Where sections timed outside of any [recordingInto] go, when they only need timing for [HotPath].
+         * Nothing reads it back.
+         */
+        internal val unrecorded = EvaluationMetrics()
+
+        /**
+         * Runs [block] with everything this thread [time]s going into [metrics].
+         */
+        fun <R> recordingInto(metrics: EvaluationMetrics, block: () -> R): R {
+            val previous = current.get()
+            if (previous?.metrics === metrics) return block()
+
+            current.set(Recording(metrics))
+            try {
+                return block()
+            } finally {
+                current.set(previous)
+            }
+        }
+
+        /**
+         * Times [block] as part of [section]. Only the outermost of any nested calls to the same section is
+         * timed, so recursive sections aren't counted twice. [describe] is only called if the section's
+         * [HotPath.Op] decides this was a slow call.
+         *
+         * Outside of [recordingInto], sections are still timed for [HotPath] if it's on, as most evaluations
+         * (the IDE's included) don't record metrics of their own.
+         */
+        internal inline fun <R> time(section: Section, describe: () -> String = { section.label }, block: () -> R): R {
+            var ownsRecording = false
+            val recording = current.get() ?: run {
+                if (!HotPath.ENABLED || section.hotPathOp == null) return block()
+                // Set for the duration, so nested calls see they're nested.
+                ownsRecording = true
+                Recording(unrecorded).also { current.set(it) }
+            }
+            val depths = recording.depths
+            if (depths[section.ordinal]++ > 0) {
+                try {
+                    return block()
+                } finally {
+                    depths[section.ordinal]--
+                }
+            }
+
+            val start = System.nanoTime()
+            try {
+                return block()
+            } finally {
+                depths[section.ordinal]--
+                if (ownsRecording) current.remove()
+                val nanos = System.nanoTime() - start
+                recording.metrics.recordSection(section, nanos)
+                section.hotPathOp?.let { HotPath.recordMeasured(it, nanos, describe) }
+            }
+        }
+    }
+
+    data class Snapshot(
+        val lookups: Long,
+        val hits: Long,
+        val sharedHits: Long,
+        val constraintLookups: Long,
+        val constraintHits: Long,
+        val forks: Long,
+        val evaluatedByKind: Map<String, Long>,
+        val peakBundleWidth: Long,
+        val sectionNanos: Map<Section, Long>,
+        val sectionCalls: Map<Section, Long>,
+    ) {
+        val evaluated: Long get() = evaluatedByKind.values.sum()
+        val hitRatio: Double get() = if (lookups == 0L) 0.0 else hits.toDouble() / lookups
+
+        override fun toString(): String = buildString {
+            appendLine("Evaluation:")
+            appendLine(
+                "\tCache: $lookups lookups, $hits hits (${"%.1f".format(hitRatio * 100)}%), " +
+                        "$sharedHits from the shared cache"
+            )
+            appendLine("\tConstraint cache: $constraintLookups lookups, $constraintHits hits")
+            if (forks > 0) appendLine("\tForked $forks sub-evaluations")
+            appendLine("\tEvaluated $evaluated expressions, peak bundle width $peakBundleWidth")
+            for ((kind, count) in evaluatedByKind.entries.sortedByDescending { it.value }) {
+                appendLine("\t\t$kind: $count")
+            }
+            for (section in Section.entries) {
+                val calls = sectionCalls.getValue(section)
+                if (calls == 0L) continue
+                val millis = sectionNanos.getValue(section) / 1e6
+                appendLine("\t${section.label}: ${"%.3f".format(millis)}ms over $calls calls")
+            }
+        }
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        lookups = lookups.sum(),
+        hits = hits.sum(),
+        sharedHits = sharedHits.sum(),
+        constraintLookups = constraintLookups.sum(),
+        constraintHits = constraintHits.sum(),
+        forks = forks.sum(),
+        evaluatedByKind = evaluatedByKind.entries.associate { it.key.simpleName to it.value.sum() },
+        peakBundleWidth = peakBundleWidth.get(),
+        sectionNanos = Section.entries.associateWith { sectionNanos[it.ordinal].sum() },
+        sectionCalls = Section.entries.associateWith { sectionCalls[it.ordinal].sum() },
+    )
+}
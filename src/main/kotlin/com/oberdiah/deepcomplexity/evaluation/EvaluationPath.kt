@@ -0,0 +1,51 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.evaluation.EvaluatorAssistant.Direction
+
+/**
+ * Where in the expression tree an evaluation is happening, as the directions taken from the root.
+ *
+ * A persistent linked list, newest direction first, so extending a path is a single allocation that shares
+ * everything with its parent. The hash is worked out once on construction from the parent's, and equal
+ * paths almost always share their parent instance, so using these as map keys costs O(1) rather than
+ * the length of the path.
+ */
+class EvaluationPath private constructor(
+    private val parent: EvaluationPath?,
+    private val direction: Direction?,
+    val depth: Int,
+) {
+    private val hash: Int = if (parent == null) 0 else parent.hash * 31 + direction.hashCode()
+
+    companion object {
+        val ROOT = EvaluationPath(null, null, 0)
+    }
+
+    fun then(direction: Direction): EvaluationPath = EvaluationPath(this, direction, depth + 1)
+
+    override fun hashCode(): Int = hash
+
+    override fun equals(other: Any?): Boolean {
+        var lhs: EvaluationPath? = this
+        var rhs = other as? EvaluationPath ?: return false
+        while (lhs !== rhs) {
+            if (lhs == null || lhs.hash != rhs.hash || lhs.depth != rhs.depth || lhs.direction != rhs.direction) {
+                return false
+            }
+            lhs = lhs.parent
+            // Same depth, so both run out together.
+            rhs = rhs.parent!!
+        }
+        return true
+    }
+
+    override fun toString(): String {
+        val directions = ArrayDeque<Direction>()
+        var current: EvaluationPath = this
+        while (current.parent != null) {
+            directions.addFirst(current.direction!!)
+            current = current.parent
+        }
+        return directions.joinToString(prefix = "[", postfix = "]")
+    }
+}
@@ -1,29 +1,57 @@
 package com.oberdiah.deepcomplexity.evaluation
 
 import com.oberdiah.deepcomplexity.evaluation.ExprEvaluate.CacheKey
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
-
-
-class EvaluatorAssistant(
-    private val tagsMap: TagsMap,
-    private val path: List<Direction>,
-    // Mutable, and the one instance is shared between tracers, which can be confusing.
-    private val evaluatedStrings: MutableMap<List<Direction>, String>,
-    private val expressionCache: MutableMap<CacheKey, Bundle<*>>,
-    private val isInsideCondition: Boolean,
+import java.util.concurrent.ConcurrentHashMap
+
+
+/**
+ * Carries the caches through a single evaluation.
+ *
+ * This is the lean version, meant for production; every path method hands back the same instance, and nothing
+ * is recorded beyond the cache itself. See [TracingEvaluatorAssistant] for one that records how each
+ * expression evaluated, for tests and debugging.
+ */
+open class EvaluatorAssistant protected constructor(
+    protected val expressionCache: MutableMap<CacheKey, Bundle<*>>,
+    /**
+     * What each condition constrains when true, under the constraints it was reached with.
+     * See [getOrPutConstraints].
+     */
+    protected val constraintCache: MutableMap<CacheKey, ConstraintsOrPile>,
+    /**
+     * Checked on a miss in [expressionCache]. Results found in here are traced without their children,
+     * as those never got evaluated.
+     */
+    protected val sharedCache: EvaluationCache?,
+    protected val budget: AnalysisBudget,
+    /**
+     * Shared by every assistant in this evaluation.
+     */
+    val metrics: EvaluationMetrics,
 ) {
     companion object {
-        fun createInitial(tagsMap: TagsMap): EvaluatorAssistant =
+        fun createInitial(
+            sharedCache: EvaluationCache? = null,
+            budget: AnalysisBudget = AnalysisBudget.fromSettings()
+        ): EvaluatorAssistant =
             EvaluatorAssistant(
-                tagsMap,
-                emptyList(),
-                mutableMapOf(),
-                mutableMapOf(),
-                isInsideCondition = false
+                if (Settings.parallelEvaluation) ConcurrentHashMap() else mutableMapOf(),
+                if (Settings.parallelEvaluation) ConcurrentHashMap() else mutableMapOf(),
+                sharedCache,
+                budget,
+                EvaluationMetrics()
             )
     }
 
+    /**
+     * Whether sub-evaluations may be handed off to other threads. Only lean assistants created with
+     * [Settings.parallelEvaluation] on have a cache that's safe to share, and tracing never is.
+     */
+    internal val canFork: Boolean get() = expressionCache is ConcurrentHashMap
+
     interface Direction
 
     data class DirectionKey(val key: Any) : Direction
@@ -37,10 +65,9 @@ class EvaluatorAssistant(
 
     /**
      * Call when the evaluator has just entered a condition.
-     * This will turn off tracing, which isn't surfaced for conditions anyway.
+     * Conditions aren't traced, so whatever kind of assistant this is, what comes back is a lean one.
      */
-    fun enteredCondition(): EvaluatorAssistant =
-        EvaluatorAssistant(tagsMap, path, evaluatedStrings, expressionCache, true)
+    fun enteredCondition(): EvaluatorAssistant = EvaluatorAssistant(expressionCache, constraintCache, sharedCache, budget, metrics)
 
     fun leftPath(): EvaluatorAssistant = direction(DirectionEnum.Left)
     fun rightPath(): EvaluatorAssistant = direction(DirectionEnum.Right)
@@ -49,8 +76,12 @@ class EvaluatorAssistant(
     fun onlyPath(): EvaluatorAssistant = direction(DirectionEnum.Only)
     fun keyedPath(key: Any): EvaluatorAssistant = direction(DirectionKey(key))
 
-    private fun direction(direction: Direction): EvaluatorAssistant =
-        EvaluatorAssistant(tagsMap, path + direction, evaluatedStrings, expressionCache, isInsideCondition)
+    protected open fun direction(direction: Direction): EvaluatorAssistant = this
+
+    /**
+     * Called with every bundle that wasn't already in the per-run cache.
+     */
+    protected open fun trace(expr: Expr<*>, bundle: Bundle<*>) {}
 
     fun <T : Any> getOrPut(
         expr: Expr<T>,
@@ -70,132 +101,91 @@ class EvaluatorAssistant(
         // }
         // ```
         // the '3' here is imbued with [x > 5]'ness even though it has nothing to do with it.
-        // This may be possible to solve, but you'll need to be more thorough about it, probably
-        // ending up with a system more similar to how the Scope ExprKey filter used to work
-        // before we removed it.
+        // [ExprEvaluate.evaluate] does strip them where it can prove it's safe to, but it then re-attaches
+        // them to the bundle we return here itself.
         val cacheKey = CacheKey(expr, constraints)
 
-        return expressionCache.getOrPut(cacheKey) {
-            val bundle = evalFunc()
+        metrics.lookups.increment()
+        val cached = expressionCache[cacheKey]?.also { metrics.hits.increment() } ?: run {
+            // Expressions from a session can't be hit again once it closes, so aren't worth sharing.
+            val shared = sharedCache?.takeIf { ExprPool.currentSession() == null }
+            val sharedHit = shared?.get(cacheKey)?.also { metrics.sharedHits.increment() }
+            val bundle = sharedHit ?: evaluateWithinBudget(expr, constraints, evalFunc).also {
+                // Anything finished after the budget ran out may have been widened further down.
+                if (!budget.isExhausted) shared?.put(cacheKey, it)
+            }
             trace(expr, bundle)
-            bundle
-        }.coerceTo(expr.ind)
+            // If we're evaluating in parallel, someone else may have got here first; stick with theirs.
+            expressionCache.putIfAbsent(cacheKey, bundle) ?: bundle
+        }
+        return cached.coerceTo(expr.ind)
     }
 
-    fun getCacheReadout(): String {
-        val cacheHitRate = String.format(
-            "%.2f",
-            100.0 * (1.0 - expressionCache.size.toDouble() / Double.NaN)
-        )
+    /**
+     * The constraints [condition] imposes when it's true, given it was reached under [constraints].
+     *
+     * Conditions get re-constrained a lot (every nested [IfExpr] and loop does it again), so these are kept
+     * for the rest of the evaluation. Conditions aren't traced, so unlike [getOrPut] there's no
+     * tracing to worry about here.
+     */
+    fun getOrPutConstraints(
+        condition: Expr<Boolean>,
+        constraints: ConstraintsOrPile,
+        compute: () -> ConstraintsOrPile
+    ): ConstraintsOrPile {
+        val cacheKey = CacheKey(condition, constraints)
+
+        metrics.constraintLookups.increment()
+        constraintCache[cacheKey]?.let {
+            metrics.constraintHits.increment()
+            return it
+        }
 
-        return "Expressions evaluated: ${expressionCache.size}" +
-                " out of ${Double.NaN} total," +
-                " cache hit rate: $cacheHitRate%"
+        val computed = compute()
+        return constraintCache.putIfAbsent(cacheKey, computed) ?: computed
     }
 
-    fun getTrace(): String {
-        if (isInsideCondition) return "<| IS INSIDE CONDITION |>"
-
-        val mainStr = "${ExpressionTagger.tagsToString(tagsMap)}\n${evaluatedStrings[emptyList()]!!}"
-
-        return if (likelyCompromised) {
-            mainStr + "\nThe tracer's sanity checks were disabled because the TEST_FILTER" +
-                    " environment variable was set to 'go',\nso this trace will likely be inaccurate " +
-                    "if you've performed any instruction-pointer-moving debugging."
-        } else {
-            mainStr
-        }
+    /**
+     * What [getOrPutConstraints] would give for both [condition] and [inverse], if both are already known.
+     * Lets a caller skip building anything it'd only need on a miss.
+     */
+    fun knownConstraintsBothWays(
+        condition: Expr<Boolean>,
+        inverse: Expr<Boolean>,
+        constraints: ConstraintsOrPile
+    ): Pair<ConstraintsOrPile, ConstraintsOrPile>? {
+        val whenTrue = constraintCache[CacheKey(condition, constraints)] ?: return null
+        val whenFalse = constraintCache[CacheKey(inverse, constraints)] ?: return null
+        metrics.constraintLookups.add(2)
+        metrics.constraintHits.add(2)
+        return whenTrue to whenFalse
     }
 
-    private val likelyCompromised: Boolean get() = System.getenv("TEST_FILTER") == "go"
-
-    fun trace(expr: Expr<*>, bundle: Bundle<*>) {
-        if (isInsideCondition) return
+    /**
+     * For when working out one condition's constraints gave us another's for free.
+     */
+    fun putConstraints(condition: Expr<Boolean>, constraints: ConstraintsOrPile, result: ConstraintsOrPile) {
+        constraintCache.putIfAbsent(CacheKey(condition, constraints), result)
+    }
 
-        fun getStr(direction: DirectionEnum, fallback: Expr<*>): String {
-            return evaluatedStrings.getOrElse(path + direction) {
-//                "<| NOT EVALUATED |>"
-                "${ExprToString.toStringWithTags(fallback, tagsMap)} = <| NOT EVALUATED |>"
-            }
+    private fun <T : Any> evaluateWithinBudget(
+        expr: Expr<T>,
+        constraints: ConstraintsOrPile,
+        evalFunc: () -> Bundle<*>
+    ): Bundle<*> {
+        if (!budget.tryTakeNode()) {
+            return Bundle.unconstrainedSet(expr.ind.newFullSet()).constrainWith(constraints)
         }
 
-        val myResult = "<| ${bundle.toDebugString()} |>"
-
-        if (!likelyCompromised) {
-            require(path !in evaluatedStrings) {
-                "Path already evaluated: $path"
-            }
+        val bundle = evalFunc()
+        metrics.recordEvaluated(expr, bundle)
+        if (bundle.varianceCount <= budget.maxBundleWidth) {
+            return bundle
         }
 
-        evaluatedStrings[path] = tagsMap[expr] ?: when (expr) {
-            is ArithmeticExpr -> {
-                val lhsStr = getStr(DirectionEnum.Left, expr.lhs)
-                val rhsStr = getStr(DirectionEnum.Right, expr.rhs)
-
-                if (!lhsStr.contains("|>") && !rhsStr.contains("|>")) {
-                    "(${lhsStr} ${expr.op} ${rhsStr}) = $myResult"
-                } else {
-                    "${lhsStr.prependIndent("| ")}\n" +
-                            "|-> ${expr.op}\n" +
-                            "${rhsStr.prependIndent("| ")}\n" +
-                            "| = $myResult"
-                }
-            }
-
-            is NegateExpr -> "-${getStr(DirectionEnum.Only, expr.expr)}"
-
-            is ComparisonExpr<*> -> "(${
-                getStr(DirectionEnum.Left, expr.lhs)
-            } ${expr.comp} ${
-                getStr(DirectionEnum.Right, expr.rhs)
-            }) = $myResult"
-
-            is ConstExpr<*> -> expr.value.toString()
-            is IfExpr -> {
-                "if ${ExprToString.toStringWithTags(expr.thisCondition, tagsMap)} {\n${
-                    getStr(DirectionEnum.True, expr.trueExpr).prependIndent()
-                }\n} else {\n${
-                    getStr(DirectionEnum.False, expr.falseExpr).prependIndent()
-                }\n} = $myResult"
-            }
-
-            is BooleanInvertExpr -> "!${getStr(DirectionEnum.Only, expr.expr)} = $myResult"
-
-            is BooleanOpExpr -> "(${
-                getStr(DirectionEnum.Left, expr.lhs)
-            } ${expr.op} ${
-                getStr(DirectionEnum.Right, expr.rhs)
-            })"
-
-            is VariableExpr -> expr.key.toString()
-            is TypeCastExpr<*, *> -> {
-                if (expr.explicit) {
-                    "(${expr.ind}) ${getStr(DirectionEnum.Only, expr.expr)}"
-                } else {
-                    getStr(DirectionEnum.Only, expr.expr)
-                }
-            }
-
-            is VarsExpr -> "CtxExpr"
-            is LoopExpr<*> -> {
-                // todo loops
-                val target = expr.target
-                // Obviously, not implemented with evaluation values in mind at the moment, this
-                // is just to get us off the ground.
-                val condition = ExprToString.toStringWithTags(expr.condition, tagsMap)
-                val variables = expr.variables.entries.joinToString("\n") { (key, value) ->
-                    "$key: { initial: ${ExprToString.toStringWithTags(value.initialState, tagsMap)}, next: ${
-                        ExprToString.toStringWithTags(value.update, tagsMap)
-                    } }"
-                }
-
-                "Loop(\n  target: $target\n  condition: $condition\n  variables: {\n${
-                    variables.prependIndent("    ")
-                }\n  }\n)"
-            }
-
-            is LoopExpr.LoopLeaf<*> -> "${expr.key}"
-            is LoopExpr.ConstEvaluatedLeaf<*> -> "${expr.value}"
-        }
+        // Losing track of which values came with which constraints is fine, as long as we don't lose track
+        // of the constraints we were evaluated under.
+        WideningMetrics.bundlesCollapsed.increment()
+        return Bundle.unconstrainedSet(bundle.collapse()).constrainWith(constraints)
     }
-}
\ No newline at end of file
+}
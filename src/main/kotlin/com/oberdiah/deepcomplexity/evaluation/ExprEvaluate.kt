@@ -1,6 +1,7 @@
 package com.oberdiah.deepcomplexity.evaluation
 
 import com.oberdiah.deepcomplexity.context.VariableKey
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.solver.CastSolver
 import com.oberdiah.deepcomplexity.solver.LoopSolver
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.*
@@ -9,14 +10,81 @@ import com.oberdiah.deepcomplexity.utilities.Utilities.WONT_IMPLEMENT
 object ExprEvaluate {
     data class CacheKey(val expr: Expr<*>, val constraints: ConstraintsOrPile)
 
-    fun <T : Any> evaluate(
+    data class Evaluation<T : Any>(val bundle: Bundle<T>, val metrics: EvaluationMetrics.Snapshot)
+
+    /**
+     * Evaluates [expr] as the root of an evaluation, handing back what it took alongside the result.
+     */
+    fun <T : Any> evaluateWithMetrics(
         expr: Expr<T>,
         constraints: ConstraintsOrPile,
         assistant: EvaluatorAssistant
-    ): Bundle<T> = assistant.getOrPut(expr, constraints) {
-        evaluateInner(expr, constraints, assistant)
+    ): Evaluation<T> {
+        val bundle = EvaluationMetrics.recordingInto(assistant.metrics) {
+            evaluate(expr, constraints, assistant)
+        }
+        return Evaluation(bundle, assistant.metrics.snapshot())
+    }
+
+    fun <T : Any> evaluate(
+        expr: Expr<T>,
+        uninterned: ConstraintsOrPile,
+        assistant: EvaluatorAssistant
+    ): Bundle<T> {
+        // Most of our children are evaluated under these same constraints, so interning them here means most
+        // cache lookups below compare constraints by pointer.
+        val constraints = uninterned.interned()
+        val (relevant, irrelevant) = projectOnto(expr, constraints)
+            ?: return assistant.getOrPut(expr, constraints) {
+                evaluateInner(expr, constraints, assistant)
+            }
+
+        return assistant.getOrPut(expr, relevant) {
+            evaluateInner(expr, relevant, assistant)
+        }.constrainWith(irrelevant)
     }
 
+    /**
+     * Splits [constraints] into those [expr] may depend on and those it definitely can't, or returns null if
+     * there's nothing to split off. See [ConstraintsOrPile.projectedOnto] for how.
+     *
+     * A constraint on a variable that never appears below [expr] can't affect how it evaluates; all that
+     * happens to it is that it's attached to every variance of the result. So evaluating under just the
+     * relevant half and attaching the irrelevant half afterwards with [Bundle.constrainWith] gives the same
+     * bundle, while letting every caller that differs only in irrelevant constraints share a cache entry.
+     * The one difference is where [Settings.maxConstraintKeys] bites, as the halves are rejoined after
+     * evaluating rather than before, so widened results can differ; hence [Settings.projectConstraints].
+     *
+     * Deliberately narrow, to keep that argument watertight:
+     * - Only single-entry piles, so re-attaching is a plain `and` rather than a cross product.
+     * - Only [VariableKey]s, as expression and loop keys can be introduced by the evaluation itself.
+     * - Nothing with a loop below, as those bring in bundles evaluated under constraints of their own.
+     */
+    private fun projectOnto(
+        expr: Expr<*>,
+        constraints: ConstraintsOrPile
+    ): Pair<ConstraintsOrPile, ConstraintsOrPile>? {
+        if (!Settings.projectConstraints || expr.summary.containsLoop) return null
+        return constraints.projectedOnto(expr.summary.keyBloom)
+    }
+
+    /**
+     * Evaluates the two operands of a binary expression, forking them off if they're big enough
+     * (see [ParallelEvaluator]).
+     */
+    private fun <A : Any, B : Any> evaluateBoth(
+        lhs: Expr<A>,
+        rhs: Expr<B>,
+        constraints: ConstraintsOrPile,
+        assistant: EvaluatorAssistant
+    ): Pair<Bundle<A>, Bundle<B>> = ParallelEvaluator.maybeInParallel(
+        assistant,
+        lhs,
+        rhs,
+        { evaluate(lhs, constraints, assistant.leftPath()) },
+        { evaluate(rhs, constraints, assistant.rightPath()) }
+    )
+
     fun <T : Any> evaluateInner(
         expr: Expr<T>,
         constraints: ConstraintsOrPile,
@@ -28,23 +96,20 @@ object ExprEvaluate {
 
             is ArithmeticExpr<*> -> {
                 fun <T : Number> inner(expr: ArithmeticExpr<T>, constraints: ConstraintsOrPile): Bundle<T> {
-                    val lhs = evaluate(expr.lhs, constraints, assistant.leftPath())
-                    val rhs = evaluate(expr.rhs, constraints, assistant.rightPath())
+                    val (lhs, rhs) = evaluateBoth(expr.lhs, expr.rhs, constraints, assistant)
                     return lhs.arithmeticOperation(rhs, expr.op, expr.exprKey)
                 }
                 inner(expr, constraints)
             }
 
             is BooleanOpExpr -> {
-                val lhs = evaluate(expr.lhs, constraints, assistant.leftPath())
-                val rhs = evaluate(expr.rhs, constraints, assistant.rightPath())
+                val (lhs, rhs) = evaluateBoth(expr.lhs, expr.rhs, constraints, assistant)
                 lhs.booleanOperation(rhs, expr.op, expr.exprKey)
             }
 
             is ComparisonExpr<*> -> {
                 fun <T : Any> inner(expr: ComparisonExpr<T>, constraints: ConstraintsOrPile): Bundle<Boolean> {
-                    val lhs = evaluate(expr.lhs, constraints, assistant.leftPath())
-                    val rhs = evaluate(expr.rhs, constraints, assistant.rightPath())
+                    val (lhs, rhs) = evaluateBoth(expr.lhs, expr.rhs, constraints, assistant)
                     return lhs.comparisonOperation(rhs, expr.comp, expr.exprKey)
                 }
                 inner(expr, constraints)
@@ -65,24 +130,23 @@ object ExprEvaluate {
 
                 val ifCondition = expr.thisCondition
 
-                val trueConstraints = constraints.and(
-                    ExprConstrain.getConstraints(ifCondition, constraints, assistant.enteredCondition())
-                )
-                val falseConstraints = constraints.and(
-                    ExprConstrain.getConstraints(
-                        BooleanInvertExpr.new(ifCondition),
-                        constraints,
-                        assistant.enteredCondition()
-                    )
-                )
+                val (whenTrue, whenFalse) =
+                    ExprConstrain.getConstraintsBothWays(ifCondition, constraints, assistant.enteredCondition())
+                val trueConstraints = constraints.and(whenTrue)
+                val falseConstraints = constraints.and(whenFalse)
 
                 if (falseConstraints.unreachable) {
                     evaluate(expr.trueExpr, trueConstraints, assistant.truePath())
                 } else if (trueConstraints.unreachable) {
                     evaluate(expr.falseExpr, falseConstraints, assistant.falsePath())
                 } else {
-                    val trueValue = evaluate(expr.trueExpr, trueConstraints, assistant.truePath())
-                    val falseValue = evaluate(expr.falseExpr, falseConstraints, assistant.falsePath())
+                    val (trueValue, falseValue) = ParallelEvaluator.maybeInParallel(
+                        assistant,
+                        expr.trueExpr,
+                        expr.falseExpr,
+                        { evaluate(expr.trueExpr, trueConstraints, assistant.truePath()) },
+                        { evaluate(expr.falseExpr, falseConstraints, assistant.falsePath()) }
+                    )
                     trueValue.union(falseValue)
                 }
             }
@@ -104,7 +168,7 @@ object ExprEvaluate {
             }
 
             is VarsExpr -> WONT_IMPLEMENT("VarsExpr should never reach the evaluation stage")
-            is LoopExpr<*> -> {
+            is LoopExpr<*> -> EvaluationMetrics.time(EvaluationMetrics.Section.LOOP_SOLVE) {
                 LoopSolver.evaluateTarget(
                     expr.target,
                     expr.condition,
@@ -0,0 +1,93 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+/**
+ * An insertion-ordered set of interned expressions, which also hands each member a dense index
+ * (its position in [members]) that can be used to look things up in a plain array.
+ *
+ * Keyed on intern id in a primitive open-addressed table, so membership checks never touch
+ * [Expr.hashCode]/[Expr.equals] and adding a member allocates nothing beyond the occasional resize.
+ * Intern ids are unique among live expressions, and every member is kept alive by [members].
+ */
+internal class ExprIndexSet(expectedSize: Int = 16) {
+    private var ids = LongArray(capacityFor(expectedSize))
+    private var slots = IntArray(ids.size)
+
+    val members = ArrayList<Expr<*>>(expectedSize)
+
+    val size: Int get() = members.size
+
+    operator fun contains(expr: Expr<*>): Boolean = indexOf(expr) >= 0
+
+    /**
+     * The index [expr] was given when it was added, or -1 if it's not a member.
+     */
+    fun indexOf(expr: Expr<*>): Int {
+        val id = idOf(expr)
+        val mask = ids.size - 1
+        var i = slotFor(id, mask)
+        while (true) {
+            val existing = ids[i]
+            if (existing == id) return slots[i]
+            if (existing == 0L) return -1
+            i = (i + 1) and mask
+        }
+    }
+
+    /**
+     * Adds [expr], returning false if it was already a member.
+     */
+    fun add(expr: Expr<*>): Boolean {
+        val id = idOf(expr)
+        val mask = ids.size - 1
+        var i = slotFor(id, mask)
+        while (true) {
+            val existing = ids[i]
+            if (existing == id) return false
+            if (existing == 0L) break
+            i = (i + 1) and mask
+        }
+
+        ids[i] = id
+        slots[i] = members.size
+        members.add(expr)
+
+        if (members.size * 2 > ids.size) {
+            grow()
+        }
+        return true
+    }
+
+    private fun grow() {
+        val oldIds = ids
+        val oldSlots = slots
+        ids = LongArray(oldIds.size * 2)
+        slots = IntArray(ids.size)
+        val mask = ids.size - 1
+        for (j in oldIds.indices) {
+            val id = oldIds[j]
+            if (id == 0L) continue
+            var i = slotFor(id, mask)
+            while (ids[i] != 0L) {
+                i = (i + 1) and mask
+            }
+            ids[i] = id
+            slots[i] = oldSlots[j]
+        }
+    }
+
+    companion object {
+        private fun capacityFor(expectedSize: Int): Int =
+            Integer.highestOneBit(maxOf(expectedSize, 8) * 2 - 1) * 2
+
+        private fun idOf(expr: Expr<*>): Long {
+            val id = expr.transientInternIdDoNotUse
+            require(id != 0L) { "Expr is not interned yet (internId==0)." }
+            return id
+        }
+
+        private fun slotFor(id: Long, mask: Int): Int {
+            val h = id * -0x61c8864680b583ebL
+            return (h xor (h ushr 32)).toInt() and mask
+        }
+    }
+}
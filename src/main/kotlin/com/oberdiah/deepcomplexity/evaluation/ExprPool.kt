@@ -1,33 +1,196 @@
 package com.oberdiah.deepcomplexity.evaluation
 
 import java.lang.ref.ReferenceQueue
-import java.lang.ref.WeakReference
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * The hash-consing table for all expressions.
+ *
+ * Expressions are keyed on [Expr.internFingerprint], with [Expr.internMatches] as the full-equality
+ * fallback, so a pool hit costs a hash probe and nothing else. See [InternTable] for how the
+ * "one canonical instance per structure" guarantee is kept without a pool-wide lock.
+ * Entries whose expression has been garbage collected are swept out of the table by [drainQueue],
+ * which only ever runs on one thread at a time and never blocks the thread that called it.
+ *
+ * Analysis work should be done inside a [Session] (see [withSession]), which keeps its expressions
+ * out of the global, weakly-referenced table entirely.
+ *
+ * How well all this is working can be seen through [ExprPoolMetrics].
+ */
 object ExprPool {
     private val creationFlag = ThreadLocal.withInitial { false }
     fun isCreating(): Boolean = creationFlag.get()
 
+    /**
+     * How many collected entries a single [drainQueue] call will sweep before handing back control.
+     * Keeps the cost of a drain bounded for whichever unlucky caller ends up doing it.
+     */
+    private const val MAX_DRAIN_BATCH = 256
+
     private val nextId = AtomicLong(1)
     private val queue = ReferenceQueue<Expr<*>>()
+    private val draining = AtomicBoolean(false)
+
+    internal val table = InternTable(nextId) { fingerprint, expr, next ->
+        InternTable.WeakEntry(fingerprint, expr, queue, next)
+    }
+
+    private val currentSession = ThreadLocal<Session?>()
+    private val openSessions = ConcurrentHashMap.newKeySet<Session>()
 
     /**
-     * This isn't a good key to use globally; it still depends on the interned id that may be invalidated.
-     * If you want a key for an expression, just use the expression itself.
+     * Every session that hasn't been closed yet, for [ExprPoolMetrics].
      */
-    private data class Key(
-        val kind: Class<*>,
-        val parts: List<Any?>
-    )
+    internal fun openSessions(): Collection<Session> = openSessions
+
+    /**
+     * An analysis-session arena.
+     *
+     * While a session is open on a thread, any expression that thread creates that isn't already in the
+     * global pool is interned into the session instead, where it's strongly referenced. When the session
+     * closes, the whole lot is released in one go as ordinary garbage; the GC never sees a weak reference
+     * for any of it. Only expressions passed to [promote] (and everything they reference) make it into
+     * the global pool and survive the session.
+     *
+     * Expressions that escape a session without being promoted are no longer canonical, and will compare
+     * unequal to any structurally identical expression created afterwards. Don't let them.
+     */
+    class Session internal constructor() {
+        internal val table = InternTable(nextId) { fingerprint, expr, next ->
+            InternTable.StrongEntry(fingerprint, expr, next)
+        }
 
-    private class Entry(
-        val key: Key,
-        expr: Expr<*>,
-        queue: ReferenceQueue<Expr<*>>
-    ) : WeakReference<Expr<*>>(expr, queue)
+        @Volatile
+        var isOpen = true
+            private set
+
+        init {
+            openSessions.add(this)
+        }
+
+        internal fun close() {
+            isOpen = false
+            openSessions.remove(this)
+            ExprPoolMetrics.recordSessionClosed(table.size())
+        }
+
+        /**
+         * Moves [roots], and everything reachable from them, into the global pool so that they outlive
+         * this session, returning the canonical instance of each root in the same order.
+         *
+         * Another session may have promoted a structurally identical expression in the meantime. That works
+         * bottom-up: where one of our expressions loses, its parents are rebuilt against the winner, so
+         * what comes back only ever references canonical expressions. Anything still holding on to the
+         * old roots should be switched over to the returned ones.
+         *
+         * The exception is an expression that loses through a key that can't be rebuilt (a [LoopExpr]'s,
+         * or one inside a static [VarsExpr]); that's adopted as it is.
+         */
+        fun promote(roots: List<Expr<*>>): List<Expr<*>> {
+            require(isOpen) { "Cannot promote from a closed session." }
+
+            val canonical = HashMap<Expr<*>, Expr<*>>()
+            // Post-order: an expression is only promoted once everything it references has been.
+            val stack = ArrayDeque<Pair<Expr<*>, Boolean>>()
+            roots.forEach { stack.addLast(it to false) }
+            while (stack.isNotEmpty()) {
+                val (expr, referencesDone) = stack.removeLast()
+                if (expr in canonical) continue
+
+                if (referencesDone) {
+                    canonical[expr] = promoteOne(expr) { canonical.getValue(it) }
+                    continue
+                }
+
+                // Anything that's already global only ever references other global expressions,
+                // so there's no need to go any further down.
+                if (table.find(expr.internFingerprint()) { it === expr } == null) {
+                    canonical[expr] = expr
+                    continue
+                }
 
-    private val table = ConcurrentHashMap<Key, Entry>()
+                stack.addLast(expr to true)
+                expr.referencedExprs().forEach { if (it !in canonical) stack.addLast(it to false) }
+            }
+
+            return roots.map { canonical.getValue(it) }
+        }
+
+        private fun promoteOne(expr: Expr<*>, canonical: (Expr<*>) -> Expr<*>): Expr<*> {
+            val rebuilt = if (expr.referencedExprs().all { canonical(it) === it }) {
+                expr
+            } else {
+                outsideSession { reinterned(expr, canonical) }
+            }
+            // Rebuilding went through the factories, so has already landed in the global pool.
+            if (rebuilt !== expr) return rebuilt
+
+            val winner = ExprPool.table.adopt(expr.internFingerprint(), expr)
+            if (winner === expr) {
+                ExprPoolMetrics.promotions.increment()
+            }
+            return winner
+        }
+
+        private fun reinterned(expr: Expr<*>, canonical: (Expr<*>) -> Expr<*>): Expr<*> = when {
+            expr is VariableExpr<*> -> VariableExpr.new(expr.key.mapReferencedExprs(canonical), expr.ind)
+            expr.referencedExprs() == expr.directSubExprs ->
+                ExprTreeRebuilder.rebuild(expr, false) { child, _ -> canonical(child) }
+
+            else -> expr
+        }
+    }
+
+    /**
+     * Runs [block] inside an analysis session, see [Session].
+     * If this thread is already inside a session, [block] joins it rather than opening a new one.
+     */
+    fun <T> withSession(block: (Session) -> T): T {
+        currentSession.get()?.let { return block(it) }
+
+        val session = Session()
+        currentSession.set(session)
+        try {
+            return block(session)
+        } finally {
+            currentSession.remove()
+            session.close()
+        }
+    }
+
+    /**
+     * Runs [block] with any session on this thread suspended, so that everything it creates goes straight
+     * into the global pool. Used for expressions that are cached for the lifetime of the program.
+     */
+    fun <T> outsideSession(block: () -> T): T {
+        val session = currentSession.get() ?: return block()
+        currentSession.remove()
+        try {
+            return block()
+        } finally {
+            currentSession.set(session)
+        }
+    }
+
+    /**
+     * Runs [block] on this thread as part of [session] (or outside of any session if it's null), for worker
+     * threads helping out with work started inside it. Whoever opened the session is still the one to close it.
+     */
+    fun <T> joinSession(session: Session?, block: () -> T): T {
+        val previous = currentSession.get()
+        if (previous === session) return block()
+
+        currentSession.set(session)
+        try {
+            return block()
+        } finally {
+            currentSession.set(previous)
+        }
+    }
+
+    internal fun currentSession(): Session? = currentSession.get()
 
     internal inline fun <reified T : Expr<*>> create(exprMaker: () -> T): T {
         creationFlag.set(true)
@@ -42,44 +205,97 @@ object ExprPool {
         return intern(instance)
     }
 
-    @Synchronized
+    /**
+     * Like [create], but first probes the pool for an existing canonical instance, so a hit never
+     * runs [exprMaker] at all. [fingerprint] and [matches] must agree with the [Expr.internFingerprint]
+     * and [Expr.internMatches] of whatever [exprMaker] would build.
+     */
+    internal inline fun <reified T : Expr<*>> create(
+        fingerprint: Long,
+        matches: (Expr<*>) -> Boolean,
+        exprMaker: () -> T
+    ): T {
+        val existing = currentSession()?.table?.find(fingerprint, matches)
+            ?: table.find(fingerprint, matches)
+
+        if (existing != null) {
+            ExprPoolMetrics.probeHits.increment()
+            @Suppress("UNCHECKED_CAST")
+            return existing as T
+        }
+        return create(exprMaker)
+    }
+
     private fun <T : Expr<*>> intern(candidate: T): T {
-        while (true) {
-            val ref = queue.poll() as Entry? ?: break
-            table.remove(ref.key, ref)
+        if (!ExprPoolMetrics.shouldSample()) {
+            return internUntimed(candidate)
+        }
+
+        val start = System.nanoTime()
+        try {
+            return internUntimed(candidate)
+        } finally {
+            ExprPoolMetrics.recordInternNanos(System.nanoTime() - start)
         }
+    }
+
+    private fun <T : Expr<*>> internUntimed(candidate: T): T {
+        drainQueue()
 
         require(candidate.transientInternIdDoNotUse == 0L) {
             "Expr $candidate is already interned."
         }
 
-        val key = buildKey(candidate)
+        val fingerprint = candidate.internFingerprint()
+        val session = currentSession()
 
-        table[key]?.get()?.let { existing ->
-            @Suppress("UNCHECKED_CAST")
-            return existing as T
+        val canonical = if (session == null) {
+            // Fast path, the vast majority of creations are for structures we've already seen.
+            table.find(fingerprint, candidate)
+                ?: table.insertIfAbsent(fingerprint, candidate).also {
+                    if (it === candidate) ExprPoolMetrics.globalInserts.increment()
+                }
+        } else {
+            require(session.isOpen) { "Cannot create expressions in a closed session." }
+            session.table.find(fingerprint, candidate)
+                ?: table.find(fingerprint, candidate)
+                // Checked again under the global stripe's lock, so a promotion from another session can't
+                // slip in between us missing the global table and inserting into our own.
+                ?: table.withStripeLocked(fingerprint) {
+                    table.find(fingerprint, candidate)
+                        ?: session.table.insertIfAbsent(fingerprint, candidate).also {
+                            if (it === candidate) ExprPoolMetrics.sessionInserts.increment()
+                        }
+                }
         }
 
-        candidate.assignInternId(nextId.getAndIncrement())
+        if (canonical !== candidate) {
+            ExprPoolMetrics.internHits.increment()
+        }
 
-        table[key] = Entry(key, candidate, queue)
-        return candidate
+        @Suppress("UNCHECKED_CAST")
+        return canonical as T
     }
 
-    private fun buildKey(expr: Expr<*>): Key {
-        val normalizedParts = expr.myParts().map { p ->
-            when (p) {
-                is Expr<*> -> {
-                    val id = p.transientInternIdDoNotUse
-                    require(id != 0L) {
-                        "Child Expr is not interned yet (internId==0)."
-                    }
-                    id
-                }
-
-                else -> p
+    /**
+     * Removes entries whose expressions have been collected. If another thread is already draining
+     * we don't wait for it — the entries will be picked up by the next drain.
+     */
+    private fun drainQueue() {
+        if (!draining.compareAndSet(false, true)) return
+        try {
+            var drained = 0
+            while (drained < MAX_DRAIN_BATCH) {
+                val ref = queue.poll() as InternTable.WeakEntry? ?: break
+                table.remove(ref)
+                drained++
             }
+            if (drained > 0) {
+                ExprPoolMetrics.drainedEntries.add(drained.toLong())
+                ExprPoolMetrics.drainPasses.increment()
+            }
+        } finally {
+            draining.set(false)
         }
-        return Key(expr.javaClass, normalizedParts)
     }
 }
@@ -0,0 +1,177 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.settings.Settings
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Counters describing how [ExprPool] is being used.
+ *
+ * Everything on the hot path is a [LongAdder], so recording is a contention-free increment and
+ * the cost is paid when a [snapshot] is taken instead. Population figures aren't counted at all;
+ * [snapshot] walks the global table, and the tables of any open sessions, to work them out.
+ */
+object ExprPoolMetrics {
+    /**
+     * Creations that found an existing expression before constructing anything.
+     */
+    internal val probeHits = LongAdder()
+
+    /**
+     * Creations that constructed a candidate and then found it already interned.
+     */
+    internal val internHits = LongAdder()
+
+    internal val globalInserts = LongAdder()
+    internal val sessionInserts = LongAdder()
+    internal val promotions = LongAdder()
+
+    internal val drainedEntries = LongAdder()
+    internal val drainPasses = LongAdder()
+
+    internal val sessionsClosed = LongAdder()
+    private val largestSession = LongAccumulator(Math::max, 0)
+
+    /**
+     * Nodes [Expr.optimise] (or a pipeline ending in a simplify) simplified, and subtrees it skipped because
+     * they were already marked [Expr.isOptimised].
+     */
+    internal val optimiseSimplified = LongAdder()
+    internal val optimiseSkipped = LongAdder()
+
+    /**
+     * Rewrites that went through [ParallelRewriter], and how many times one of its level tasks was split
+     * in two for the fork-join pool.
+     */
+    internal val parallelRewrites = LongAdder()
+    internal val parallelRewriteForks = LongAdder()
+
+    private val sampledInterns = LongAdder()
+    private val sampledInternNanos = LongAdder()
+    private val slowestSampledIntern = LongAccumulator(Math::max, 0)
+
+    /**
+     * Whether this call to intern should be timed. Random rather than every n-th call so there's
+     * no shared counter to fight over.
+     */
+    internal fun shouldSample(): Boolean {
+        val rate = Settings.exprPoolLatencySampleRate
+        return rate > 0 && ThreadLocalRandom.current().nextInt(rate) == 0
+    }
+
+    internal fun recordInternNanos(nanos: Long) {
+        sampledInterns.increment()
+        sampledInternNanos.add(nanos)
+        slowestSampledIntern.accumulate(nanos)
+    }
+
+    internal fun recordSessionClosed(size: Int) {
+        sessionsClosed.increment()
+        largestSession.accumulate(size.toLong())
+    }
+
+    data class Snapshot(
+        val probeHits: Long,
+        val internHits: Long,
+        val globalInserts: Long,
+        val sessionInserts: Long,
+        val promotions: Long,
+        val drainedEntries: Long,
+        val drainPasses: Long,
+        val sessionsClosed: Long,
+        val largestSession: Long,
+        val optimiseSimplified: Long,
+        val optimiseSkipped: Long,
+        val parallelRewrites: Long,
+        val parallelRewriteForks: Long,
+        val sampledInterns: Long,
+        val sampledInternNanos: Long,
+        val slowestSampledIntern: Long,
+        val liveGlobal: Int,
+        val population: Map<String, Int>,
+        val openSessions: Int,
+        val liveInSessions: Int,
+    ) {
+        val hits: Long get() = probeHits + internHits
+        val misses: Long get() = globalInserts + sessionInserts
+        val hitRatio: Double get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+
+        /**
+         * The counters accumulated since [earlier] was taken. Population and maximums aren't
+         * cumulative, so those are left as they are now; [toString] labels them as such.
+         */
+        operator fun minus(earlier: Snapshot): Snapshot = copy(
+            probeHits = probeHits - earlier.probeHits,
+            internHits = internHits - earlier.internHits,
+            globalInserts = globalInserts - earlier.globalInserts,
+            sessionInserts = sessionInserts - earlier.sessionInserts,
+            promotions = promotions - earlier.promotions,
+            drainedEntries = drainedEntries - earlier.drainedEntries,
+            drainPasses = drainPasses - earlier.drainPasses,
+            sessionsClosed = sessionsClosed - earlier.sessionsClosed,
+            optimiseSimplified = optimiseSimplified - earlier.optimiseSimplified,
+            optimiseSkipped = optimiseSkipped - earlier.optimiseSkipped,
+            parallelRewrites = parallelRewrites - earlier.parallelRewrites,
+            parallelRewriteForks = parallelRewriteForks - earlier.parallelRewriteForks,
+            sampledInterns = sampledInterns - earlier.sampledInterns,
+            sampledInternNanos = sampledInternNanos - earlier.sampledInternNanos,
+        )
+
+        override fun toString(): String = buildString {
+            appendLine("ExprPool:")
+            appendLine("\tHits: $hits ($probeHits before construction, $internHits after)")
+            appendLine("\tMisses: $misses ($globalInserts global, $sessionInserts in sessions)")
+            appendLine("\tHit ratio: ${"%.1f".format(hitRatio * 100)}%")
+            appendLine("\tPromoted out of sessions: $promotions")
+            appendLine("\tSessions closed: $sessionsClosed (largest ever held $largestSession)")
+            appendLine("\tOptimise: $optimiseSimplified simplified, $optimiseSkipped already-optimised subtrees skipped")
+            appendLine("\tParallel rewrites: $parallelRewrites ($parallelRewriteForks tasks forked)")
+            appendLine("\tCollected entries swept: $drainedEntries over $drainPasses drains")
+            if (sampledInterns > 0) {
+                val mean = sampledInternNanos / sampledInterns
+                appendLine(
+                    "\tIntern latency: ${mean}ns mean ($sampledInterns sampled), ${slowestSampledIntern}ns max ever"
+                )
+            }
+            appendLine("\tLive in $openSessions open sessions right now: $liveInSessions")
+            appendLine("\tLive global expressions right now: $liveGlobal")
+            for ((kind, count) in population.entries.sortedByDescending { it.value }) {
+                appendLine("\t\t$kind: $count")
+            }
+        }
+    }
+
+    fun snapshot(): Snapshot {
+        val population = HashMap<String, Int>()
+        var live = 0
+        ExprPool.table.forEachLive {
+            live++
+            population.merge(it.javaClass.simpleName, 1, Int::plus)
+        }
+        val sessions = ExprPool.openSessions().toList()
+
+        return Snapshot(
+            probeHits = probeHits.sum(),
+            internHits = internHits.sum(),
+            globalInserts = globalInserts.sum(),
+            sessionInserts = sessionInserts.sum(),
+            promotions = promotions.sum(),
+            drainedEntries = drainedEntries.sum(),
+            drainPasses = drainPasses.sum(),
+            sessionsClosed = sessionsClosed.sum(),
+            largestSession = largestSession.get(),
+            optimiseSimplified = optimiseSimplified.sum(),
+            optimiseSkipped = optimiseSkipped.sum(),
+            parallelRewrites = parallelRewrites.sum(),
+            parallelRewriteForks = parallelRewriteForks.sum(),
+            sampledInterns = sampledInterns.sum(),
+            sampledInternNanos = sampledInternNanos.sum(),
+            slowestSampledIntern = slowestSampledIntern.get(),
+            liveGlobal = live,
+            population = population,
+            openSessions = sessions.size,
+            liveInSessions = sessions.sumOf { it.table.size() },
+        )
+    }
+}
@@ -0,0 +1,121 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.context.MethodProcessingKey
+import com.oberdiah.deepcomplexity.context.QualifiedFieldKey
+
+/**
+ * A few facts about everything below an expression (itself included), worked out once when it's
+ * interned from its children's summaries.
+ *
+ * Only covers what a [TreeTraversal.All] traversal would reach, so it doesn't look inside keys or the
+ * [com.oberdiah.deepcomplexity.context.Vars] of a static [VarsExpr]. That's the same set of nodes a tree
+ * rewrite visits, which is what makes it safe to skip a subtree the summary rules out.
+ */
+class ExprSummary private constructor(
+    private val flags: Int,
+    /**
+     * The number of nodes on the longest path from here down to a leaf, counting both ends.
+     */
+    val maxDepth: Int,
+    /**
+     * A Bloom filter of the [MethodProcessingKey]s of the [VariableExpr]s and [LoopExpr.LoopLeaf]s below.
+     * See [bloomBitFor].
+     */
+    val keyBloom: Long,
+    /**
+     * The number of nodes in the fully expanded tree, saturating at [Int.MAX_VALUE]. Always at least the
+     * number of unique nodes, so it's a cheap way to rule out a DAG being large.
+     */
+    val treeSize: Int,
+) {
+    val containsVariable: Boolean get() = flags and VARIABLE != 0
+    val containsQualifiedVariable: Boolean get() = flags and QUALIFIED_VARIABLE != 0
+    val containsVars: Boolean get() = flags and VARS != 0
+    val containsDynamicVars: Boolean get() = flags and DYNAMIC_VARS != 0
+    val containsLoopLeaf: Boolean get() = flags and LOOP_LEAF != 0
+
+    /**
+     * Whether there's a [LoopExpr] or [LoopExpr.ConstEvaluatedLeaf] below, both of which can bring in
+     * values evaluated somewhere else entirely.
+     */
+    val containsLoop: Boolean get() = flags and LOOP != 0
+
+    /**
+     * False only if there's definitely no expression of class [kind] below.
+     */
+    fun mayContain(kind: Class<*>): Boolean = when (kind) {
+        VariableExpr::class.java -> containsVariable
+        VarsExpr::class.java -> containsVars
+        LoopExpr.LoopLeaf::class.java -> containsLoopLeaf
+        else -> true
+    }
+
+    /**
+     * False only if none of the keys in [bloom] are definitely referenced below.
+     */
+    fun mayReferenceAnyOf(bloom: Long): Boolean = keyBloom and bloom != 0L
+
+    fun mayReference(key: MethodProcessingKey): Boolean = mayReferenceAnyOf(bloomBitFor(key))
+
+    companion object {
+        private const val VARIABLE = 1
+        private const val QUALIFIED_VARIABLE = 1 shl 1
+        private const val VARS = 1 shl 2
+        private const val DYNAMIC_VARS = 1 shl 3
+        private const val LOOP_LEAF = 1 shl 4
+        private const val LOOP = 1 shl 5
+
+        private val EMPTY_LEAF = ExprSummary(0, 1, 0L, 1)
+
+        fun bloomBitFor(key: MethodProcessingKey): Long {
+            val h = key.hashCode() * -0x61c88647
+            return 1L shl (h ushr 26)
+        }
+
+        /**
+         * Relies on all of [expr]'s children having been interned, and so summarised, already.
+         */
+        internal fun of(expr: Expr<*>): ExprSummary {
+            var flags = 0
+            var bloom = 0L
+            when (expr) {
+                is VariableExpr<*> -> {
+                    flags = flags or VARIABLE
+                    if (expr.key is QualifiedFieldKey) flags = flags or QUALIFIED_VARIABLE
+                    bloom = bloom or bloomBitFor(expr.key)
+                }
+
+                is VarsExpr -> {
+                    flags = flags or VARS
+                    if (expr.isDynamic) flags = flags or DYNAMIC_VARS
+                }
+
+                is LoopExpr.LoopLeaf<*> -> {
+                    flags = flags or LOOP_LEAF
+                    bloom = bloom or bloomBitFor(expr.key.key)
+                }
+
+                is LoopExpr<*>, is LoopExpr.ConstEvaluatedLeaf<*> -> flags = flags or LOOP
+
+                else -> {}
+            }
+
+            val children = expr.directSubExprs
+            if (flags == 0 && children.isEmpty()) {
+                return EMPTY_LEAF
+            }
+
+            var depth = 0
+            var size = 1L
+            for (child in children) {
+                val summary = child.summary
+                flags = flags or summary.flags
+                bloom = bloom or summary.keyBloom
+                depth = maxOf(depth, summary.maxDepth)
+                size += summary.treeSize
+            }
+
+            return ExprSummary(flags, depth + 1, bloom, minOf(size, Int.MAX_VALUE.toLong()).toInt())
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.oberdiah.deepcomplexity.context.MethodProcessingKey
 import com.oberdiah.deepcomplexity.evaluation.ExprTreeRebuilder.rewriteInTree
 import com.oberdiah.deepcomplexity.evaluation.LoopExpr.LoopLeaf
 import com.oberdiah.deepcomplexity.evaluation.LoopExpr.LoopVar
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.staticAnalysis.BooleanIndicator
 import com.oberdiah.deepcomplexity.staticAnalysis.numberSimplification.ConversionsAndPromotion
 
@@ -57,6 +58,188 @@ object ExprTreeRebuilder {
         }
     }
 
+    /**
+     * The memo of what each expression was rewritten to, so that shared sub-expressions are only rewritten once.
+     *
+     * Passing the same cache to several [rewriteInTree] calls shares that work between them too, which is
+     * worthwhile when rewriting many expressions that share sub-DAGs. Only do so when every one of those
+     * calls uses the same replacer, traversal and skip predicate.
+     */
+    class RewriteCache {
+        internal val replacements = HashMap<Expr<*>, Expr<*>>()
+    }
+
+    /**
+     * One stage of a [RewritePipeline]: [replacer] is applied to every expression of class [appliesTo],
+     * and must return an expression with the same indicator.
+     */
+    class RewriteStage(
+        val appliesTo: Class<*>,
+        /**
+         * As with [rewriteInTree], true for any subtree that [replacer] definitely wouldn't change.
+         */
+        val skipSubtree: (Expr<*>) -> Boolean,
+        val replacer: (Expr<*>) -> Expr<*>,
+    ) {
+        companion object {
+            /**
+             * A stage replacing expressions of type [Q], skipping subtrees whose summary rules them out.
+             */
+            inline fun <reified Q : Expr<*>> ofType(
+                crossinline skipSubtree: (Expr<*>) -> Boolean = { false },
+                crossinline replacer: (Q) -> Expr<*>,
+            ): RewriteStage {
+                val kind = Q::class.java
+                return RewriteStage(
+                    kind,
+                    { !it.summary.mayContain(kind) || skipSubtree(it) },
+                    { replacer(it as Q).coerceTo(it.ind) }
+                )
+            }
+
+            private val SIMPLIFY = RewriteStage(Expr::class.java, { it.isOptimised }) {
+                ExprPoolMetrics.optimiseSimplified.increment()
+                it.simplify()
+            }
+
+            /**
+             * Calls [Expr.simplify] on every node, as [Expr.optimise] does, skipping anything already
+             * marked [Expr.isOptimised]. Must be the last stage of a pipeline.
+             */
+            fun simplify(): RewriteStage = SIMPLIFY
+        }
+    }
+
+    /**
+     * Applies several [RewriteStage]s in one post-order traversal, with the same result as running one
+     * [TreeTraversal.All] [rewriteInTree] per stage, in order.
+     *
+     * Each node is rebuilt once from its fully processed children and then passed through each stage in turn.
+     * That's equivalent to the stage-by-stage result because a stage only ever sees nodes of its own class, and
+     * the classes our stages replace are either leaves or, like [simplify], come last. If a stage does replace a
+     * node, the replacement is a new subtree that the stages before it never saw, so it goes through the
+     * remaining stages only; the caches are kept per first-stage for exactly that reason.
+     *
+     * A pipeline may be used for any number of expressions, sharing its caches between all of them.
+     *
+     * If the last stage is [RewriteStage.simplify], nodes this pipeline provably leaves alone under [Expr.optimise]
+     * are marked [Expr.isOptimised] along the way.
+     *
+     * Always runs on the calling thread, even with [Settings.parallelRewrites] on. A stage's replacement has to
+     * go through the stages after it before its parent can be rebuilt, so the work doesn't split into the fixed
+     * levels [ParallelRewriter] relies on.
+     */
+    class RewritePipeline(private val stages: List<RewriteStage>) {
+        private val caches = Array(stages.size) { HashMap<Expr<*>, Expr<*>>() }
+        private val endsWithSimplify = stages.lastOrNull() === RewriteStage.simplify()
+
+        fun <T : Any> rewrite(expr: Expr<T>): Expr<T> {
+            val stack = ArrayList<PipelineFrame>()
+            stack.add(PipelineFrame(expr, 0, PipelineFrame.State.ENTERING))
+
+            while (stack.isNotEmpty()) {
+                val frame = stack.removeLast()
+                val cache = caches.getOrNull(frame.firstStage)
+                when (frame.state) {
+                    PipelineFrame.State.ENTERING -> {
+                        if (isUntouched(frame.expr, frame.firstStage)) {
+                            if (endsWithSimplify && frame.expr.isOptimised) {
+                                ExprPoolMetrics.optimiseSkipped.increment()
+                            }
+                            continue
+                        }
+                        if (frame.expr in cache!!) continue
+
+                        stack.add(PipelineFrame(frame.expr, frame.firstStage, PipelineFrame.State.REBUILDING))
+                        val children = childrenInRebuildOrder(frame.expr, false)
+                        for (i in children.indices.reversed()) {
+                            stack.add(PipelineFrame(children[i].first, frame.firstStage, PipelineFrame.State.ENTERING))
+                        }
+                    }
+
+                    PipelineFrame.State.REBUILDING -> {
+                        if (frame.expr in cache!!) continue
+                        var childrenUnchanged = true
+                        val rebuilt = rebuild(frame.expr, false) { child, _ ->
+                            resultOf(child, frame.firstStage).also { if (it !== child) childrenUnchanged = false }
+                        }
+                        applyStages(frame, rebuilt, childrenUnchanged, stack)
+                    }
+
+                    PipelineFrame.State.AWAITING_REPLACEMENT -> {
+                        val (replaced, stage) = frame.replacement!!
+                        cache!![frame.expr] = resultOf(replaced, stage)
+                    }
+                }
+            }
+
+            return resultOf(expr, 0).coerceTo(expr.ind)
+        }
+
+        /**
+         * Passes [rebuilt] through each stage in turn. If one of them replaces it, the replacement still
+         * needs to go through the remaining stages, so that's scheduled and the result is filled in later.
+         */
+        private fun applyStages(
+            frame: PipelineFrame,
+            rebuilt: Expr<*>,
+            childrenUnchanged: Boolean,
+            stack: MutableList<PipelineFrame>,
+        ) {
+            var current = rebuilt
+            for (i in frame.firstStage until stages.size) {
+                val stage = stages[i]
+                if (!stage.appliesTo.isInstance(current) || stage.skipSubtree(current)) continue
+
+                val replaced = stage.replacer(current)
+                if (replaced !== current) {
+                    stack.add(
+                        PipelineFrame(
+                            frame.expr,
+                            frame.firstStage,
+                            PipelineFrame.State.AWAITING_REPLACEMENT,
+                            replaced to i + 1
+                        )
+                    )
+                    stack.add(PipelineFrame(replaced, i + 1, PipelineFrame.State.ENTERING))
+                    return
+                }
+                current = replaced
+            }
+            caches[frame.firstStage][frame.expr] = current
+
+            // If our children are fixed points of [Expr.optimise], came back unchanged, and rebuilding and
+            // then simplifying us gave us back as well, then we're a fixed point of [Expr.optimise] too.
+            val expr = frame.expr
+            if (endsWithSimplify && current === expr && childrenUnchanged && !expr.isOptimised &&
+                expr.directSubExprs.all { it.isOptimised }
+            ) {
+                expr.isOptimised = true
+            }
+        }
+
+        /**
+         * Whether no stage from [firstStage] onwards would change anything in [expr]'s subtree.
+         */
+        private fun isUntouched(expr: Expr<*>, firstStage: Int): Boolean =
+            (firstStage until stages.size).all { stages[it].skipSubtree(expr) }
+
+        /**
+         * [expr], put through every stage from [firstStage] onwards. Must already have been processed.
+         */
+        private fun resultOf(expr: Expr<*>, firstStage: Int): Expr<*> =
+            if (isUntouched(expr, firstStage)) expr else caches[firstStage].getValue(expr)
+    }
+
+    private class PipelineFrame(
+        val expr: Expr<*>,
+        val firstStage: Int,
+        val state: State,
+        val replacement: Pair<Expr<*>, Int>? = null,
+    ) {
+        enum class State { ENTERING, REBUILDING, AWAITING_REPLACEMENT }
+    }
+
     /**
      * Variant of [rewriteInTree] that enforces indicator preservation.
      *
@@ -68,9 +251,10 @@ object ExprTreeRebuilder {
      */
     fun <T : Any> Expr<T>.rewriteInTreeSameType(
         treeTraversal: TreeTraversal = TreeTraversal.All,
+        cache: RewriteCache = RewriteCache(),
         replacer: (Expr<*>) -> Expr<*>,
     ): Expr<T> =
-        this.rewriteInTree(treeTraversal) { e -> replacer(e).coerceTo(e.ind) }.coerceTo(this.ind)
+        this.rewriteInTree(treeTraversal, cache = cache) { e -> replacer(e).coerceTo(e.ind) }.coerceTo(this.ind)
 
     /**
      * Rebuilds the expression tree using a post-order (leaves-first) traversal.
@@ -86,106 +270,184 @@ object ExprTreeRebuilder {
      * Return the same expression to indicate “no change”.
      *
      * [treeTraversal] controls how IfExpr nodes are traversed.
+     *
+     * Any subtree for which [skipSubtree] returns true is left exactly as it is, without being rebuilt or
+     * passed to [replacer]. Only use it to skip subtrees [replacer] definitely wouldn't change.
+     *
+     * Rewrites are memoised in [cache], see [RewriteCache] for when it's fine to share one.
+     *
+     * Very large rewrites may be spread across several threads, see [Settings.parallelRewrites]. In that
+     * case [replacer] will be called concurrently.
      */
     fun <T : Any> Expr<T>.rewriteInTree(
         treeTraversal: TreeTraversal = TreeTraversal.All,
+        skipSubtree: (Expr<*>) -> Boolean = { false },
+        cache: RewriteCache = RewriteCache(),
         replacer: (Expr<*>) -> Expr<*>,
     ): Expr<*> {
-        val replacerCache = mutableMapOf<Expr<*>, Expr<*>>()
+        if (ParallelRewriter.mightRunInParallel(this, treeTraversal)) {
+            return ParallelRewriter.rewrite(this, skipSubtree, cache, replacer)
+        }
+        return rewriteSequentially(this, treeTraversal, skipSubtree, cache, replacer)
+    }
 
-        /**
-         * [isInCondition]: Whether we're currently inside an if-condition. Once set, this remains true for any
-         * nested if-conditions. Just used for our recursion.
-         */
-        fun inner(
-            expr: Expr<*>,
-            isInCondition: Boolean,
-            replacer: (Expr<*>) -> Expr<*>
-        ): Expr<*> {
-            return replacerCache.getOrPut(expr) {
-                val replacedExpr: Expr<*> = when (expr) {
-                    is BooleanInvertExpr -> BooleanInvertExpr.new(
-                        inner(expr.expr, isInCondition, replacer).coerceTo(BooleanIndicator)
-                    )
+    internal fun rewriteSequentially(
+        root: Expr<*>,
+        treeTraversal: TreeTraversal,
+        skipSubtree: (Expr<*>) -> Boolean,
+        cache: RewriteCache,
+        replacer: (Expr<*>) -> Expr<*>,
+    ): Expr<*> {
+        val replacerCache = cache.replacements
 
-                    is VarsExpr -> expr
-                    is LoopLeaf<*> -> expr
-                    is LoopExpr.ConstEvaluatedLeaf<*> -> expr
-                    is LeafExpr<*> -> expr
+        fun resultOf(expr: Expr<*>): Expr<*> = if (skipSubtree(expr)) expr else replacerCache.getValue(expr)
 
-                    is NegateExpr<*> -> NegateExpr.new(
-                        inner(expr.expr, isInCondition, replacer).coerceToNumbers()
-                    )
+        // An explicit-stack post-order traversal, so arbitrarily deep trees can't overflow the thread's stack.
+        // Children are pushed so that they pop in the same order [rebuild] asks for them in, and each node is
+        // only ever rewritten in the [isInCondition] context it's first reached in.
+        val stack = ArrayList<RewriteFrame>()
+        stack.add(RewriteFrame(root, isInCondition = false, isExiting = false))
 
-                    is TypeCastExpr<*, *> -> TypeCastExpr.new(
-                        inner(expr.expr, isInCondition, replacer),
-                        expr.ind,
-                        expr.explicit
-                    )
+        while (stack.isNotEmpty()) {
+            val (expr, isInCondition, isExiting) = stack.removeLast()
+            if (skipSubtree(expr) || expr in replacerCache) continue
 
-                    is IfExpr -> ConversionsAndPromotion.coerceAToB(
-                        inner(expr.trueExpr, isInCondition, replacer),
-                        inner(expr.falseExpr, isInCondition, replacer),
-                    ).map { trueE, falseE ->
-                        IfExpr.newRaw(
-                            trueE,
-                            falseE,
-                            inner(expr.thisCondition, true, replacer).coerceTo(BooleanIndicator)
-                        )
-                    }
+            if (!isExiting) {
+                stack.add(RewriteFrame(expr, isInCondition, isExiting = true))
+                val children = childrenInRebuildOrder(expr, isInCondition)
+                for (i in children.indices.reversed()) {
+                    val (child, childInCondition) = children[i]
+                    stack.add(RewriteFrame(child, childInCondition, isExiting = false))
+                }
+            } else {
+                val replacedExpr = rebuild(expr, isInCondition) { child, _ -> resultOf(child) }
+                val shouldReplace = if (isInCondition) treeTraversal.doCondition() else treeTraversal.doBranches()
+                replacerCache[expr] = if (shouldReplace) replacer(replacedExpr) else replacedExpr
+            }
+        }
 
-                    is AnyBinaryExpr<*> -> {
-                        ConversionsAndPromotion.coerceAToB(
-                            inner(expr.lhs, isInCondition, replacer),
-                            inner(expr.rhs, isInCondition, replacer),
-                        ).map { lhs, rhs ->
-                            when (expr) {
-                                is ComparisonExpr<*> -> ComparisonExpr.new(lhs, rhs, expr.comp)
-                                is ArithmeticExpr<*> ->
-                                    ConversionsAndPromotion.coerceAToB(
-                                        lhs,
-                                        rhs.coerceToNumbers(),
-                                    )
-                                        .map { l, r ->
-                                            ArithmeticExpr.new(l, r, expr.op)
-                                        }
-
-                                is BooleanOpExpr ->
-                                    ConversionsAndPromotion.coerceAToB(
-                                        lhs,
-                                        rhs.coerceTo(BooleanIndicator),
-                                    )
-                                        .map { l, r ->
-                                            BooleanOpExpr.newRaw(l, r, expr.op)
-                                        }
-                            }
-                        }
-                    }
+        return resultOf(root)
+    }
+
+    private data class RewriteFrame(val expr: Expr<*>, val isInCondition: Boolean, val isExiting: Boolean)
+
+    /**
+     * The children [rebuild] will ask to have rewritten, in the order it asks for them, each alongside
+     * whether it sits inside an if-condition.
+     */
+    internal fun childrenInRebuildOrder(expr: Expr<*>, isInCondition: Boolean): List<Pair<Expr<*>, Boolean>> {
+        return when (expr) {
+            is BooleanInvertExpr -> listOf(expr.expr to isInCondition)
+
+            is VarsExpr -> emptyList()
+            is LoopLeaf<*> -> emptyList()
+            is LoopExpr.ConstEvaluatedLeaf<*> -> emptyList()
+            is LeafExpr<*> -> emptyList()
+
+            is NegateExpr<*> -> listOf(expr.expr to isInCondition)
+            is TypeCastExpr<*, *> -> listOf(expr.expr to isInCondition)
+
+            is IfExpr -> listOf(
+                expr.trueExpr to isInCondition,
+                expr.falseExpr to isInCondition,
+                expr.thisCondition to true
+            )
+
+            is AnyBinaryExpr<*> -> listOf(expr.lhs to isInCondition, expr.rhs to isInCondition)
+
+            is LoopExpr<*> -> expr.variables.values.flatMap {
+                listOf(it.initialState to isInCondition, it.update to isInCondition)
+            } + (expr.condition to isInCondition)
+        }
+    }
+
+    /**
+     * Rebuilds [expr] from its children, each of which is first passed through [rewriteChild] along with
+     * whether it sits inside an if-condition. Leaves are returned as they are.
+     *
+     * Keep [childrenInRebuildOrder] in step with this.
+     */
+    internal fun rebuild(
+        expr: Expr<*>,
+        isInCondition: Boolean,
+        rewriteChild: (Expr<*>, Boolean) -> Expr<*>,
+    ): Expr<*> {
+        return when (expr) {
+            is BooleanInvertExpr -> BooleanInvertExpr.new(
+                rewriteChild(expr.expr, isInCondition).coerceTo(BooleanIndicator)
+            )
+
+            is VarsExpr -> expr
+            is LoopLeaf<*> -> expr
+            is LoopExpr.ConstEvaluatedLeaf<*> -> expr
+            is LeafExpr<*> -> expr
 
-                    is LoopExpr<*> -> {
-                        // This is definitely incomplete - it needs proper handling of isInCondition situations.
-                        // But for now it should handle the basics :)
-                        val newVariables = expr.variables.mapValues { (_, v) ->
+            is NegateExpr<*> -> NegateExpr.new(
+                rewriteChild(expr.expr, isInCondition).coerceToNumbers()
+            )
+
+            is TypeCastExpr<*, *> -> TypeCastExpr.new(
+                rewriteChild(expr.expr, isInCondition),
+                expr.ind,
+                expr.explicit
+            )
+
+            is IfExpr -> ConversionsAndPromotion.coerceAToB(
+                rewriteChild(expr.trueExpr, isInCondition),
+                rewriteChild(expr.falseExpr, isInCondition),
+            ).map { trueE, falseE ->
+                IfExpr.newRaw(
+                    trueE,
+                    falseE,
+                    rewriteChild(expr.thisCondition, true).coerceTo(BooleanIndicator)
+                )
+            }
+
+            is AnyBinaryExpr<*> -> {
+                ConversionsAndPromotion.coerceAToB(
+                    rewriteChild(expr.lhs, isInCondition),
+                    rewriteChild(expr.rhs, isInCondition),
+                ).map { lhs, rhs ->
+                    when (expr) {
+                        is ComparisonExpr<*> -> ComparisonExpr.new(lhs, rhs, expr.comp)
+                        is ArithmeticExpr<*> ->
                             ConversionsAndPromotion.coerceAToB(
-                                inner(v.initialState, isInCondition, replacer),
-                                inner(v.update, isInCondition, replacer)
-                            ).map { initial, next ->
-                                LoopVar(initial, next)
-                            }
-                        }
-                        LoopExpr.new(
-                            target = expr.target,
-                            condition = inner(expr.condition, isInCondition, replacer).coerceTo(BooleanIndicator),
-                            variables = newVariables
-                        )
+                                lhs,
+                                rhs.coerceToNumbers(),
+                            )
+                                .map { l, r ->
+                                    ArithmeticExpr.new(l, r, expr.op)
+                                }
+
+                        is BooleanOpExpr ->
+                            ConversionsAndPromotion.coerceAToB(
+                                lhs,
+                                rhs.coerceTo(BooleanIndicator),
+                            )
+                                .map { l, r ->
+                                    BooleanOpExpr.newRaw(l, r, expr.op)
+                                }
                     }
                 }
+            }
 
-                val shouldReplace = if (isInCondition) treeTraversal.doCondition() else treeTraversal.doBranches()
-                if (shouldReplace) replacer(replacedExpr) else replacedExpr
+            is LoopExpr<*> -> {
+                // This is definitely incomplete - it needs proper handling of isInCondition situations.
+                // But for now it should handle the basics :)
+                val newVariables = expr.variables.mapValues { (_, v) ->
+                    ConversionsAndPromotion.coerceAToB(
+                        rewriteChild(v.initialState, isInCondition),
+                        rewriteChild(v.update, isInCondition)
+                    ).map { initial, next ->
+                        LoopVar(initial, next)
+                    }
+                }
+                LoopExpr.new(
+                    target = expr.target,
+                    condition = rewriteChild(expr.condition, isInCondition).coerceTo(BooleanIndicator),
+                    variables = newVariables
+                )
             }
         }
-
-        return inner(this, false, replacer)
     }
 }
\ No newline at end of file
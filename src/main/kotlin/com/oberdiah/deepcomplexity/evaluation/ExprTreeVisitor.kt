@@ -1,8 +1,5 @@
 package com.oberdiah.deepcomplexity.evaluation
 
-import com.oberdiah.deepcomplexity.utilities.Utilities.decrementCount
-import com.oberdiah.deepcomplexity.utilities.Utilities.incrementCount
-
 object ExprTreeVisitor {
     fun <OUTPUT> reduce(
         treeTraversal: TreeTraversal = TreeTraversal.All,
@@ -33,23 +30,76 @@ object ExprTreeVisitor {
         return cache.getValue(initial)
     }
 
+    /**
+     * Calls [action] once on every unique expression in [root]'s tree, parents before children, and earlier
+     * children's subtrees before later ones. Subtrees for which [skipSubtree] returns true aren't visited.
+     */
+    internal inline fun forEachPreOrder(
+        root: Expr<*>,
+        treeTraversal: TreeTraversal = TreeTraversal.All,
+        skipSubtree: (Expr<*>) -> Boolean = { false },
+        action: (Expr<*>) -> Unit,
+    ) {
+        val seen = ExprIndexSet()
+        val stack = ArrayList<Expr<*>>()
+        stack.add(root)
+        while (stack.isNotEmpty()) {
+            val expr = stack.removeLast()
+            if (!seen.add(expr) || skipSubtree(expr)) continue
+
+            action(expr)
+            val children = expr.subExprs(treeTraversal)
+            for (i in children.indices.reversed()) {
+                stack.add(children[i])
+            }
+        }
+    }
+
+    /**
+     * Every unique expression reachable from [roots], the roots included.
+     */
+    internal fun collectUnique(roots: Iterable<Expr<*>>): ExprIndexSet {
+        val seen = ExprIndexSet()
+        val stack = ArrayList<Expr<*>>()
+        for (root in roots) {
+            if (seen.add(root)) stack.add(root)
+        }
+
+        while (stack.isNotEmpty()) {
+            val expr = stack.removeLast()
+            for (child in expr.directSubExprs) {
+                if (seen.add(child)) stack.add(child)
+            }
+        }
+
+        return seen
+    }
+
+    /**
+     * The number of unique expressions in the trees of [roots], counting any shared between them once.
+     */
+    fun uniqueNodeCount(vararg roots: Expr<*>): Int = collectUnique(roots.asIterable()).size
+
     fun getTopologicalOrdering(root: Expr<*>): List<Expr<*>> {
-        val reachable = root.recursiveSubExprs
-        val indegree = reachable.associateWith { 0 }.toMutableMap()
-        for (parent in reachable) {
+        val reachable = collectUnique(listOf(root))
+        val indegree = IntArray(reachable.size)
+        for (parent in reachable.members) {
             for (child in parent.directSubExprs) {
-                indegree.incrementCount(child)
+                indegree[reachable.indexOf(child)]++
             }
         }
 
-        val stillToProcess = ArrayDeque(indegree.filterValues { it == 0 }.keys)
+        val stillToProcess = ArrayDeque<Expr<*>>()
+        reachable.members.forEachIndexed { i, expr ->
+            if (indegree[i] == 0) stillToProcess.addLast(expr)
+        }
 
         val resultingList = buildList(reachable.size) {
             while (true) {
                 val expr = stillToProcess.removeFirstOrNull() ?: break
                 add(expr)
                 for (child in expr.directSubExprs) {
-                    if (indegree.decrementCount(child) == 0) {
+                    if (--indegree[reachable.indexOf(child)] == 0) {
                         stillToProcess.addLast(child)
                     }
                 }
@@ -62,4 +112,4 @@ object ExprTreeVisitor {
 
         return resultingList
     }
-}
\ No newline at end of file
+}
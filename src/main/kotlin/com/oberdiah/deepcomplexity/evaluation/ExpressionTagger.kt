@@ -1,8 +1,6 @@
 package com.oberdiah.deepcomplexity.evaluation
 
 import com.oberdiah.deepcomplexity.evaluation.ExprToString.toStringWithTags
-import com.oberdiah.deepcomplexity.utilities.Utilities.innerJoin
-import com.oberdiah.deepcomplexity.utilities.Utilities.sum
 import java.math.BigInteger
 
 typealias TagsMap = Map<Expr<*>, String>
@@ -19,34 +17,34 @@ object ExpressionTagger {
      * for those tags. Useful for pretty-printing large expressions.
      */
     fun buildTags(expr: Expr<*>): TagsMap {
-        if (expr.size < BigInteger.valueOf(500)) {
+        val paths = PathCounts.of(expr)
+        if (paths.treeSize < BigInteger.valueOf(500)) {
             return emptyMap()
         }
 
-        val counts = expr.subExprCounts
-        val ordering: List<Expr<*>> = ExprTreeVisitor.getTopologicalOrdering(expr).asReversed()
+        val ordering: List<Expr<*>> = paths.ordering.asReversed()
         val tags = mutableMapOf<Expr<*>, String>()
-        val tagsSizeTakingTagsIntoAccount = mutableMapOf<Expr<*>, BigInteger>()
+
+        // How big each expression is once any tagged sub-expressions are replaced by their tags.
+        // Children come before parents in this ordering, so theirs are always ready by the time we need them.
+        val sizeTakingTagsIntoAccount = CountArray(ordering.size)
         ordering.forEachIndexed { index, expr ->
-            // We subtract the sizes of any sub-expressions that are already tagged,
-            // as those will be replaced by their tags in the final output.
-            val exprSizeInReality = expr.size - expr.subExprCounts
-                .innerJoin(tagsSizeTakingTagsIntoAccount)
-                .values
-                // Subtract 1 because the tagged expression will be replaced by a tag, which has size 1.
-                .map { (count, size) -> count * (size - BigInteger.ONE) }
-                .sum()
-
-            require(exprSizeInReality > BigInteger.ZERO) {
-                "Expression size was non-positive for expression: $expr"
+            val i = paths.indexOf(expr)
+            sizeTakingTagsIntoAccount[i] = 1
+            for (child in expr.directSubExprs) {
+                if (child in tags) {
+                    // A tag has size 1.
+                    sizeTakingTagsIntoAccount.increment(i)
+                } else {
+                    sizeTakingTagsIntoAccount.addFrom(i, sizeTakingTagsIntoAccount, paths.indexOf(child))
+                }
             }
 
-            if (counts[expr]!! > BigInteger.ONE && exprSizeInReality > BigInteger.valueOf(3)) {
+            if (paths.pathsTo(expr) > BigInteger.ONE && sizeTakingTagsIntoAccount[i] > BigInteger.valueOf(3)) {
                 tags[expr] = "T$index"
-                tagsSizeTakingTagsIntoAccount[expr] = exprSizeInReality
             }
         }
 
         return tags
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,21 @@
 package com.oberdiah.deepcomplexity.evaluation
 
-import ai.grazie.utils.merge
 import com.oberdiah.deepcomplexity.context.*
 import com.oberdiah.deepcomplexity.context.EvaluationKey.ExpressionKey
 import com.oberdiah.deepcomplexity.evaluation.ExprTreeRebuilder.rewriteInTree
 import com.oberdiah.deepcomplexity.evaluation.ExprTreeRebuilder.rewriteInTreeSameType
 import com.oberdiah.deepcomplexity.evaluation.IfExpr.Companion.new
+import com.oberdiah.deepcomplexity.evaluation.InternHash.mix
 import com.oberdiah.deepcomplexity.evaluation.simplification.BooleanSimplification
 import com.oberdiah.deepcomplexity.evaluation.simplification.ComparisonSimplification
 import com.oberdiah.deepcomplexity.evaluation.simplification.IfSimplification
 import com.oberdiah.deepcomplexity.staticAnalysis.*
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ExprConstrain
-import com.oberdiah.deepcomplexity.utilities.Utilities.sum
 import java.math.BigInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 const val SKIP_OPTIMIZATIONS = false
 
@@ -30,8 +31,22 @@ sealed class Expr<T : Any> : CanBeCast<T> {
             "Intern id is already set for $this"
         }
         transientInternIdDoNotUse = id
+        summary = ExprSummary.of(this)
     }
 
+    /**
+     * Set when this expression is first interned, so always available on anything you can get hold of.
+     */
+    lateinit var summary: ExprSummary
+        private set
+
+    /**
+     * Set once [optimise] is known to return this expression unchanged, so later calls can skip it entirely.
+     * Only depends on structure, so it doesn't matter which thread or session finds that out first.
+     */
+    @Volatile
+    internal var isOptimised: Boolean = false
+
     /**
      * This is marked do not use as it's *not* unique for the lifetime of the program and may change if the
      * expression doesn't exist and gets garbage collected.
@@ -52,18 +67,29 @@ sealed class Expr<T : Any> : CanBeCast<T> {
         return this.transientInternIdDoNotUse == other.transientInternIdDoNotUse
     }
 
-    fun myParts(): List<Any> = parts() + ind
-
     /**
-     * Subclasses should return their properties here for equality/hashcode purposes.
+     * Subclasses should return their properties here.
      *
-     * Note: This is also used by default for tree traversal. If you return anything here that
+     * This is used by default for tree traversal. If you return anything here that
      * isn't an expression but contain expressions, be sure to add your class to [subExprs]
      * to ensure your sub expressions are properly represented. This also applies
      * if you have any requirements around [TreeTraversal] behaviour.
      */
     protected abstract fun parts(): List<Any>
 
+    /**
+     * A 64-bit hash of this node's kind, its children's intern ids and its payload, built with [InternHash].
+     * Structurally equal expressions must produce equal fingerprints. Should cover everything
+     * [internMatches] compares.
+     */
+    internal abstract fun internFingerprint(): Long
+
+    /**
+     * Whether [other] has exactly the same structure as this expression. Children are already interned,
+     * so they can be compared by identity.
+     */
+    internal abstract fun internMatches(other: Expr<*>): Boolean
+
     /**
      * So we can treat expressions as variables in their own right in the constraint system.
      */
@@ -78,26 +104,11 @@ sealed class Expr<T : Any> : CanBeCast<T> {
         return ExprToString.toString(this)
     }
 
-    val subExprCounts: Map<Expr<*>, BigInteger> by lazy {
-        directSubExprs.map {
-            it.subExprCounts
-        }.fold(mapOf(this to BigInteger.ONE)) { mapA, mapB ->
-            mapA.merge(mapB) { _, a, b -> a + b }
-        }
-    }
-
-    /**
-     * All sub-expressions in this tree, including this one.
-     */
-    val recursiveSubExprs: Set<Expr<*>> by lazy {
-        directSubExprs.flatMap { it.recursiveSubExprs }.toSet() + this
-    }
-
     /**
      * The size of this expression tree, defined as the number of expression nodes it contains.
      * Can be really, really big. 10^50+ is not out of the question.
      */
-    val size: BigInteger by lazy { subExprCounts.values.sum() }
+    val size: BigInteger by lazy { PathCounts.of(this).treeSize }
 
     val directSubExprs by lazy { subExprs(TreeTraversal.All) }
 
@@ -119,29 +130,46 @@ sealed class Expr<T : Any> : CanBeCast<T> {
         }
     }
 
+    /**
+     * Every expression this one holds a reference to. That's its [directSubExprs], plus any expressions
+     * hiding in keys or in the [Vars] of a static [VarsExpr].
+     *
+     * Doesn't look inside the bundle of a [LoopExpr.ConstEvaluatedLeaf].
+     */
+    fun referencedExprs(): List<Expr<*>> = when (this) {
+        is VariableExpr -> key.referencedExprs()
+        is LoopExpr.LoopLeaf -> key.key.referencedExprs()
+        is LoopExpr -> directSubExprs + target.key.referencedExprs() +
+                variables.keys.flatMap { it.key.referencedExprs() }
+
+        is VarsExpr -> when (vars) {
+            is VarsExpr.DynamicOrStatic.Dynamic -> emptyList()
+            is VarsExpr.DynamicOrStatic.Static -> vars.vars.referencedExprs()
+        }
+
+        else -> directSubExprs
+    }
+
     fun allPrimaryPathLeaves(): Set<LeafExpr<*>> = allSubExprsOfType<LeafExpr<*>>(TreeTraversal.PrimaryPathOnly)
 
     internal inline fun <reified Q : Expr<*>> allSubExprsOfType(
         treeTraversal: TreeTraversal = TreeTraversal.All
-    ): Set<Q> = collectToSet(treeTraversal) { it as? Q }
+    ): Set<Q> = collectToSet(treeTraversal, { !it.summary.mayContain(Q::class.java) }) { it as? Q }
 
+    /**
+     * Collects the non-null results of [getItem] across the tree, in pre-order.
+     * Subtrees for which [skipSubtree] returns true aren't visited at all.
+     */
     fun <O> collectToSet(
         treeTraversal: TreeTraversal = TreeTraversal.All,
+        skipSubtree: (Expr<*>) -> Boolean = { false },
         getItem: (Expr<*>) -> O?
     ): Set<O> {
-        return ExprTreeVisitor.reduce(
-            treeTraversal,
-            this,
-            { expr ->
-                val item = getItem(expr)
-                if (item != null) {
-                    setOf(item)
-                } else {
-                    emptySet()
-                }
-            },
-            { setA, setB -> setA + setB }
-        )
+        val items = LinkedHashSet<O>()
+        ExprTreeVisitor.forEachPreOrder(this, treeTraversal, skipSubtree) { expr ->
+            getItem(expr)?.let { items.add(it) }
+        }
+        return items
     }
 
     fun resolveUnknowns(mCtx: Context): Expr<T> =
@@ -157,8 +185,10 @@ sealed class Expr<T : Any> : CanBeCast<T> {
      */
     inline fun <reified Q : Expr<*>> rewriteTypeInTreeSameType(
         treeTraversal: TreeTraversal = TreeTraversal.All,
+        crossinline skipSubtree: (Expr<*>) -> Boolean = { false },
+        cache: ExprTreeRebuilder.RewriteCache = ExprTreeRebuilder.RewriteCache(),
         crossinline replacer: (Q) -> Expr<*>
-    ): Expr<T> = this.rewriteTypeInTree<Q>(treeTraversal) { e -> replacer(e).coerceTo(e.ind) }
+    ): Expr<T> = this.rewriteTypeInTree<Q>(treeTraversal, skipSubtree, cache) { e -> replacer(e).coerceTo(e.ind) }
         .coerceTo(this.ind)
 
     /**
@@ -167,13 +197,21 @@ sealed class Expr<T : Any> : CanBeCast<T> {
      * Expressions that are not instances of [Q] are left unchanged. Replacements are allowed to change
      * indicators.
      *
-     * All traversal and caching behaviour is identical to [rewriteInTree].
+     * Subtrees whose [summary] rules out containing a [Q] are skipped entirely, as are any for which
+     * [skipSubtree] returns true. Otherwise, all traversal and caching behaviour is identical to [rewriteInTree].
      */
     inline fun <reified Q : Expr<*>> rewriteTypeInTree(
         treeTraversal: TreeTraversal = TreeTraversal.All,
+        crossinline skipSubtree: (Expr<*>) -> Boolean = { false },
+        cache: ExprTreeRebuilder.RewriteCache = ExprTreeRebuilder.RewriteCache(),
         crossinline replacer: (Q) -> Expr<*>
     ): Expr<*> {
-        return this.rewriteInTree(treeTraversal) { expr: Expr<*> ->
+        val kind = Q::class.java
+        return this.rewriteInTree(
+            treeTraversal,
+            { !it.summary.mayContain(kind) || skipSubtree(it) },
+            cache,
+        ) { expr: Expr<*> ->
             if (expr is Q) {
                 replacer(expr)
             } else {
@@ -184,8 +222,10 @@ sealed class Expr<T : Any> : CanBeCast<T> {
 
     /**
      * Recursively calls [simplify] on every node in the tree, rebuilding the tree as it goes.
+     * Subtrees already marked [isOptimised] are skipped, so calling this again only touches new nodes.
      */
-    fun optimise(): Expr<T> = this.rewriteInTreeSameType { it.simplify() }
+    fun optimise(): Expr<T> =
+        ExprTreeRebuilder.RewritePipeline(listOf(ExprTreeRebuilder.RewriteStage.simplify())).rewrite(this)
 
     /**
      * Simplifies the expression if possible.
@@ -196,6 +236,9 @@ sealed class Expr<T : Any> : CanBeCast<T> {
     fun evaluate(constraints: ConstraintsOrPile, assistant: EvaluatorAssistant): Bundle<T> =
         ExprEvaluate.evaluate(this, constraints, assistant)
 
+    fun evaluateWithMetrics(constraints: ConstraintsOrPile, assistant: EvaluatorAssistant): ExprEvaluate.Evaluation<T> =
+        ExprEvaluate.evaluateWithMetrics(this, constraints, assistant)
+
     override fun <Q : Any> tryCastTo(newInd: Indicator<Q>): Expr<Q>? =
         TypeCastExpr.new(this, newInd, explicit = false)
 
@@ -224,11 +267,18 @@ fun Expr<Boolean>.inverted(constraints: ConstraintsOrPile): Expr<Boolean> =
 class VarsExpr private constructor(val vars: DynamicOrStatic = DynamicOrStatic.Dynamic) : Expr<VarsMarker>() {
     companion object {
         const val STRING_PLACEHOLDER = "##VarsExpr##"
-        fun new(vars: DynamicOrStatic = DynamicOrStatic.Dynamic): VarsExpr = ExprPool.create { VarsExpr(vars) }
+        fun new(vars: DynamicOrStatic = DynamicOrStatic.Dynamic): VarsExpr =
+            ExprPool.create(fingerprint(vars), { matches(it, vars) }) { VarsExpr(vars) }
+
+        private fun fingerprint(vars: DynamicOrStatic): Long = InternHash.of(VarsExpr::class.java).mix(vars)
+        private fun matches(other: Expr<*>, vars: DynamicOrStatic): Boolean = other is VarsExpr && other.vars == vars
     }
 
     override fun parts(): List<Any> = listOf(vars)
 
+    override fun internFingerprint(): Long = fingerprint(vars)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, vars)
+
     @Suppress("unused")
     val isStatic = vars is DynamicOrStatic.Static
     val isDynamic = vars is DynamicOrStatic.Dynamic
@@ -266,7 +316,13 @@ class ArithmeticExpr<T : Number> private constructor(
 ) : Expr<T>(), AnyBinaryExpr<T> {
     companion object {
         fun <T : Number> new(lhs: Expr<T>, rhs: Expr<T>, op: BinaryNumberOp): ArithmeticExpr<T> =
-            ExprPool.create { ArithmeticExpr(lhs, rhs, op) }
+            ExprPool.create(fingerprint(lhs, rhs, op), { matches(it, lhs, rhs, op) }) { ArithmeticExpr(lhs, rhs, op) }
+
+        private fun fingerprint(lhs: Expr<*>, rhs: Expr<*>, op: BinaryNumberOp): Long =
+            InternHash.of(ArithmeticExpr::class.java).mix(lhs).mix(rhs).mix(op)
+
+        private fun matches(other: Expr<*>, lhs: Expr<*>, rhs: Expr<*>, op: BinaryNumberOp): Boolean =
+            other is ArithmeticExpr<*> && other.lhs === lhs && other.rhs === rhs && other.op == op
     }
 
     init {
@@ -277,6 +333,9 @@ class ArithmeticExpr<T : Number> private constructor(
 
     override fun parts(): List<Any> = listOf(lhs, rhs, op)
 
+    override fun internFingerprint(): Long = fingerprint(lhs, rhs, op)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, lhs, rhs, op)
+
     override val ind: Indicator<T> = lhs.ind
 }
 
@@ -288,7 +347,15 @@ class ComparisonExpr<T : Any> private constructor(
 ) : Expr<Boolean>(), AnyBinaryExpr<T> {
     companion object {
         fun <T : Any> newRaw(lhs: Expr<T>, rhs: Expr<T>, comp: ComparisonOp): ComparisonExpr<T> =
-            ExprPool.create { ComparisonExpr(lhs, rhs, comp) }
+            ExprPool.create(fingerprint(lhs, rhs, comp), { matches(it, lhs, rhs, comp) }) {
+                ComparisonExpr(lhs, rhs, comp)
+            }
+
+        private fun fingerprint(lhs: Expr<*>, rhs: Expr<*>, comp: ComparisonOp): Long =
+            InternHash.of(ComparisonExpr::class.java).mix(lhs).mix(rhs).mix(comp)
+
+        private fun matches(other: Expr<*>, lhs: Expr<*>, rhs: Expr<*>, comp: ComparisonOp): Boolean =
+            other is ComparisonExpr<*> && other.lhs === lhs && other.rhs === rhs && other.comp == comp
 
         /**
          * Compile-time casts [rhs] for you so you don't have to worry about it. If you provide
@@ -302,6 +369,9 @@ class ComparisonExpr<T : Any> private constructor(
 
     override fun parts(): List<Any> = listOf(lhs, rhs, comp)
 
+    override fun internFingerprint(): Long = fingerprint(lhs, rhs, comp)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, lhs, rhs, comp)
+
     override val ind: Indicator<Boolean> = BooleanIndicator
 
     override fun simplify(): Expr<Boolean> = new(lhs, rhs, comp)
@@ -335,11 +405,22 @@ class TypeCastExpr<T : Any, Q : Any> private constructor(
             if (expr.ind == targetInd) {
                 return expr.coerceTo(targetInd)
             }
-            return ExprPool.create { TypeCastExpr(expr, targetInd, explicit) }
+            return ExprPool.create(fingerprint(expr, targetInd, explicit), { matches(it, expr, targetInd, explicit) }) {
+                TypeCastExpr(expr, targetInd, explicit)
+            }
         }
+
+        private fun fingerprint(expr: Expr<*>, ind: Indicator<*>, explicit: Boolean): Long =
+            InternHash.of(TypeCastExpr::class.java).mix(expr).mix(ind).mix(explicit)
+
+        private fun matches(other: Expr<*>, expr: Expr<*>, ind: Indicator<*>, explicit: Boolean): Boolean =
+            other is TypeCastExpr<*, *> && other.expr === expr && other.ind == ind && other.explicit == explicit
     }
 
     override fun parts(): List<Any> = listOf(expr, ind, explicit)
+
+    override fun internFingerprint(): Long = fingerprint(expr, ind, explicit)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, expr, ind, explicit)
 }
 
 class IfExpr<T : Any> private constructor(
@@ -355,6 +436,9 @@ class IfExpr<T : Any> private constructor(
 
     override fun parts(): List<Any> = listOf(trueExpr, falseExpr, thisCondition)
 
+    override fun internFingerprint(): Long = fingerprint(trueExpr, falseExpr, thisCondition)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, trueExpr, falseExpr, thisCondition)
+
     override val ind: Indicator<T> get() = trueExpr.ind
 
     override fun simplify(): Expr<T> = new(trueExpr, falseExpr, thisCondition)
@@ -382,7 +466,17 @@ class IfExpr<T : Any> private constructor(
          * be incorrect.
          */
         fun <T : Any> newRaw(trueExpr: Expr<T>, falseExpr: Expr<T>, condition: Expr<Boolean>): IfExpr<T> =
-            ExprPool.create { IfExpr(trueExpr, falseExpr, condition) }
+            ExprPool.create(
+                fingerprint(trueExpr, falseExpr, condition),
+                { matches(it, trueExpr, falseExpr, condition) }
+            ) { IfExpr(trueExpr, falseExpr, condition) }
+
+        private fun fingerprint(trueExpr: Expr<*>, falseExpr: Expr<*>, condition: Expr<*>): Long =
+            InternHash.of(IfExpr::class.java).mix(trueExpr).mix(falseExpr).mix(condition)
+
+        private fun matches(other: Expr<*>, trueExpr: Expr<*>, falseExpr: Expr<*>, condition: Expr<*>): Boolean =
+            other is IfExpr<*> && other.trueExpr === trueExpr
+                    && other.falseExpr === falseExpr && other.thisCondition === condition
 
         /**
          * Compile-time casts [falseExpr] for you so you don't have to worry about it. If you provide
@@ -408,11 +502,20 @@ class BooleanOpExpr private constructor(
 
     override fun parts(): List<Any> = listOf(lhs, rhs, op)
 
+    override fun internFingerprint(): Long = fingerprint(lhs, rhs, op)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, lhs, rhs, op)
+
     override val ind: Indicator<Boolean> = BooleanIndicator
 
     companion object {
         fun newRaw(lhs: Expr<Boolean>, rhs: Expr<Boolean>, op: BooleanOp): BooleanOpExpr =
-            ExprPool.create { BooleanOpExpr(lhs, rhs, op) }
+            ExprPool.create(fingerprint(lhs, rhs, op), { matches(it, lhs, rhs, op) }) { BooleanOpExpr(lhs, rhs, op) }
+
+        private fun fingerprint(lhs: Expr<*>, rhs: Expr<*>, op: BooleanOp): Long =
+            InternHash.of(BooleanOpExpr::class.java).mix(lhs).mix(rhs).mix(op)
+
+        private fun matches(other: Expr<*>, lhs: Expr<*>, rhs: Expr<*>, op: BooleanOp): Boolean =
+            other is BooleanOpExpr && other.lhs === lhs && other.rhs === rhs && other.op == op
 
         fun new(lhs: Expr<Boolean>, rhs: Expr<Boolean>, op: BooleanOp): Expr<Boolean> {
             return BooleanSimplification.attemptToSimplifyBooleanExpr(lhs, rhs, op)
@@ -424,21 +527,35 @@ class BooleanOpExpr private constructor(
 
 class BooleanInvertExpr private constructor(val expr: Expr<Boolean>) : Expr<Boolean>() {
     companion object {
-        fun new(expr: Expr<Boolean>): BooleanInvertExpr = ExprPool.create { BooleanInvertExpr(expr) }
+        fun new(expr: Expr<Boolean>): BooleanInvertExpr =
+            ExprPool.create(fingerprint(expr), { matches(it, expr) }) { BooleanInvertExpr(expr) }
+
+        private fun fingerprint(expr: Expr<*>): Long = InternHash.of(BooleanInvertExpr::class.java).mix(expr)
+        private fun matches(other: Expr<*>, expr: Expr<*>): Boolean = other is BooleanInvertExpr && other.expr === expr
     }
 
     override fun parts(): List<Any> = listOf(expr)
 
+    override fun internFingerprint(): Long = fingerprint(expr)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, expr)
+
     override val ind: Indicator<Boolean> = BooleanIndicator
 }
 
 class NegateExpr<T : Number> private constructor(val expr: Expr<T>) : Expr<T>() {
     companion object {
-        fun <T : Number> new(expr: Expr<T>): NegateExpr<T> = ExprPool.create { NegateExpr(expr) }
+        fun <T : Number> new(expr: Expr<T>): NegateExpr<T> =
+            ExprPool.create(fingerprint(expr), { matches(it, expr) }) { NegateExpr(expr) }
+
+        private fun fingerprint(expr: Expr<*>): Long = InternHash.of(NegateExpr::class.java).mix(expr)
+        private fun matches(other: Expr<*>, expr: Expr<*>): Boolean = other is NegateExpr<*> && other.expr === expr
     }
 
     override fun parts(): List<Any> = listOf(expr)
 
+    override fun internFingerprint(): Long = fingerprint(expr)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, expr)
+
     override val ind: Indicator<T> = expr.ind
 }
 
@@ -489,7 +606,20 @@ class LoopExpr<T : Any> private constructor(
             target: LoopKey<T>,
             condition: Expr<Boolean>,
             variables: Map<LoopKey<*>, LoopVar<*>>
-        ): LoopExpr<T> = ExprPool.create { LoopExpr(target, condition, variables) }
+        ): LoopExpr<T> = ExprPool.create(fingerprint(target, condition, variables), {
+            matches(it, target, condition, variables)
+        }) { LoopExpr(target, condition, variables) }
+
+        private fun fingerprint(target: LoopKey<*>, condition: Expr<*>, variables: Map<LoopKey<*>, LoopVar<*>>): Long =
+            InternHash.of(LoopExpr::class.java).mix(target).mix(condition).mix(variables)
+
+        private fun matches(
+            other: Expr<*>,
+            target: LoopKey<*>,
+            condition: Expr<*>,
+            variables: Map<LoopKey<*>, LoopVar<*>>
+        ): Boolean = other is LoopExpr<*> && other.target == target
+                && other.condition === condition && other.variables == variables
     }
 
     override val ind: Indicator<T>
@@ -497,6 +627,9 @@ class LoopExpr<T : Any> private constructor(
 
     override fun parts(): List<Any> = listOf(target, condition, variables)
 
+    override fun internFingerprint(): Long = fingerprint(target, condition, variables)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, target, condition, variables)
+
     data class LoopVar<T : Any>(val initialState: Expr<T>, val update: Expr<T>)
 
     class LoopLeaf<T : Any> private constructor(
@@ -504,10 +637,18 @@ class LoopExpr<T : Any> private constructor(
     ) : Expr<T>() {
         companion object {
             fun new(key: MethodProcessingKey): LoopLeaf<*> = new(LoopKey.new(key))
-            fun <T : Any> new(key: LoopKey<T>): LoopLeaf<T> = ExprPool.create { LoopLeaf(key) }
+            fun <T : Any> new(key: LoopKey<T>): LoopLeaf<T> =
+                ExprPool.create(fingerprint(key), { matches(it, key) }) { LoopLeaf(key) }
+
+            private fun fingerprint(key: LoopKey<*>): Long = InternHash.of(LoopLeaf::class.java).mix(key)
+            private fun matches(other: Expr<*>, key: LoopKey<*>): Boolean = other is LoopLeaf<*> && other.key == key
         }
 
         override fun parts(): List<Any> = listOf(key)
+
+        override fun internFingerprint(): Long = fingerprint(key)
+        override fun internMatches(other: Expr<*>): Boolean = matches(other, key)
+
         override val ind: Indicator<T> get() = key.ind
     }
 
@@ -517,10 +658,21 @@ class LoopExpr<T : Any> private constructor(
     ) : Expr<T>() {
         companion object {
             fun <T : Any> new(value: Bundle<T>): ConstEvaluatedLeaf<T> =
-                ExprPool.create { ConstEvaluatedLeaf(value, value.ind) }
+                ExprPool.create(fingerprint(value, value.ind), { matches(it, value, value.ind) }) {
+                    ConstEvaluatedLeaf(value, value.ind)
+                }
+
+            private fun fingerprint(value: Bundle<*>, ind: Indicator<*>): Long =
+                InternHash.of(ConstEvaluatedLeaf::class.java).mix(value).mix(ind)
+
+            private fun matches(other: Expr<*>, value: Bundle<*>, ind: Indicator<*>): Boolean =
+                other is ConstEvaluatedLeaf<*> && other.value == value && other.ind == ind
         }
 
         override fun parts(): List<Any> = listOf(value, ind)
+
+        override fun internFingerprint(): Long = fingerprint(value, ind)
+        override fun internMatches(other: Expr<*>): Boolean = matches(other, value, ind)
     }
 }
 
@@ -538,13 +690,22 @@ class VariableExpr<T : Any> private constructor(
 ) : LeafExpr<T>() {
     companion object {
         fun <T : Any> new(key: MethodProcessingKey, ind: Indicator<T>): VariableExpr<T> =
-            ExprPool.create { VariableExpr(key, ind) }
+            ExprPool.create(fingerprint(key, ind), { matches(it, key, ind) }) { VariableExpr(key, ind) }
 
         fun new(key: MethodProcessingKey): VariableExpr<*> = new(key, key.ind)
+
+        private fun fingerprint(key: MethodProcessingKey, ind: Indicator<*>): Long =
+            InternHash.of(VariableExpr::class.java).mix(key).mix(ind)
+
+        private fun matches(other: Expr<*>, key: MethodProcessingKey, ind: Indicator<*>): Boolean =
+            other is VariableExpr<*> && other.key == key && other.ind == ind
     }
 
     override fun parts(): List<Any> = listOf(key, ind)
 
+    override fun internFingerprint(): Long = fingerprint(key, ind)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, key, ind)
+
     override fun resolve(vars: Vars): Expr<T> {
         return vars.get(vars.resolveKey(key)).coerceTo(ind)
     }
@@ -556,6 +717,9 @@ class VariableExpr<T : Any> private constructor(
 class ConstExpr<T : Any> private constructor(val value: T, override val ind: Indicator<T>) : LeafExpr<T>() {
     override fun parts(): List<Any> = listOf(value, ind)
 
+    override fun internFingerprint(): Long = fingerprint(value, ind)
+    override fun internMatches(other: Expr<*>): Boolean = matches(other, value, ind)
+
     override fun resolve(vars: Vars): Expr<T> = this
 
     val isHeapMarker: Boolean
@@ -564,14 +728,84 @@ class ConstExpr<T : Any> private constructor(val value: T, override val ind: Ind
     val isPlaceholder: Boolean
         get() = isHeapMarker && (value as HeapMarker).isPlaceholder
 
+    /**
+     * Direct-indexed tables of the constants we create over and over again, so that creating them
+     * skips the pool entirely. Slots are filled on first use, outside any session, and then held forever.
+     *
+     * Bytes and shorts are covered in full, ints and longs only within [Settings.smallConstantRange].
+     */
+    private object SmallConstants {
+        private val window = Settings.smallConstantRange
+
+        private val booleans = AtomicReferenceArray<ConstExpr<*>?>(2)
+        private val bytes = AtomicReferenceArray<ConstExpr<*>?>(1 shl Byte.SIZE_BITS)
+        private val shorts = AtomicReferenceArray<ConstExpr<*>?>(1 shl Short.SIZE_BITS)
+        private val ints = AtomicReferenceArray<ConstExpr<*>?>(window.last - window.first + 1)
+        private val longs = AtomicReferenceArray<ConstExpr<*>?>(window.last - window.first + 1)
+        private val heapMarkers = AtomicReferenceArray<ConstExpr<*>?>(2)
+
+        fun <T : Any> lookup(value: T, ind: Indicator<T>): ConstExpr<T>? {
+            val slot = when (ind) {
+                BooleanIndicator -> if (value as Boolean) 1 else 0
+                ByteIndicator -> (value as Byte) - Byte.MIN_VALUE
+                ShortIndicator -> (value as Short) - Short.MIN_VALUE
+                IntIndicator -> (value as Int).let { if (it in window) it - window.first else return null }
+                LongIndicator -> (value as Long).let {
+                    if (it >= window.first && it <= window.last) (it - window.first).toInt() else return null
+                }
+
+                is ObjectIndicator -> when {
+                    value !is HeapMarker || value.ind != ind -> return null
+                    value == HeapMarker.NULL -> 0
+                    value == HeapMarker.VOID -> 1
+                    else -> return null
+                }
+
+                else -> return null
+            }
+
+            val table = when (ind) {
+                BooleanIndicator -> booleans
+                ByteIndicator -> bytes
+                ShortIndicator -> shorts
+                IntIndicator -> ints
+                LongIndicator -> longs
+                else -> heapMarkers
+            }
+
+            @Suppress("UNCHECKED_CAST")
+            table.get(slot)?.let { return it as ConstExpr<T> }
+
+            // Racing threads will both get the same canonical instance from the pool, so it
+            // doesn't matter who writes the slot.
+            val created = ExprPool.outsideSession { newPooled(value, ind) }
+            table.set(slot, created)
+            return created
+        }
+    }
+
     companion object {
         fun <T : Any> new(value: T, indicator: Indicator<T>): ConstExpr<T> =
-            ExprPool.create { ConstExpr(value, indicator) }
+            SmallConstants.lookup(value, indicator) ?: newPooled(value, indicator)
+
+        private fun <T : Any> newPooled(value: T, indicator: Indicator<T>): ConstExpr<T> =
+            ExprPool.create(fingerprint(value, indicator), { matches(it, value, indicator) }) {
+                ConstExpr(value, indicator)
+            }
+
+        private fun fingerprint(value: Any, ind: Indicator<*>): Long =
+            InternHash.of(ConstExpr::class.java).mix(value).mix(ind)
+
+        private fun matches(other: Expr<*>, value: Any, ind: Indicator<*>): Boolean =
+            other is ConstExpr<*> && other.value == value && other.ind == ind
 
         val TRUE = new(true, BooleanIndicator)
         val FALSE = new(false, BooleanIndicator)
         val VOID = fromHeapMarker(HeapMarker.new(MyPsiType.VOID_TYPE))
 
+        @Suppress("unused")
+        val NULL = fromHeapMarker(HeapMarker.NULL)
+
         @Suppress("unused")
         fun <T : Number> zero(ind: NumberIndicator<T>): ConstExpr<T> = new(ind.getZero(), ind)
         fun <T : Number> one(ind: NumberIndicator<T>): ConstExpr<T> = new(ind.getOne(), ind)
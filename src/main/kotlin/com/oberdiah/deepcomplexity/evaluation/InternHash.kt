@@ -0,0 +1,31 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+/**
+ * Builds the 64-bit structural fingerprints used by [ExprPool].
+ *
+ * Usage is `InternHash.of(MyExpr::class.java).mix(child).mix(payload)`. Children are mixed in by
+ * intern id, so only ever mix in expressions that are already interned.
+ */
+internal object InternHash {
+    private const val SEED = 0x2545F4914F6CDD1DL
+    private const val GOLDEN = -0x61c8864680b583ebL
+
+    fun of(kind: Class<*>): Long = combine(SEED, kind.hashCode().toLong())
+
+    fun Long.mix(expr: Expr<*>): Long {
+        val id = expr.transientInternIdDoNotUse
+        require(id != 0L) {
+            "Child Expr is not interned yet (internId==0)."
+        }
+        return combine(this, id)
+    }
+
+    fun Long.mix(value: Any?): Long = combine(this, value.hashCode().toLong())
+
+    fun Long.mix(value: Boolean): Long = combine(this, if (value) 1231L else 1237L)
+
+    private fun combine(hash: Long, value: Long): Long {
+        val x = (hash xor value) * GOLDEN
+        return x xor (x ushr 31)
+    }
+}
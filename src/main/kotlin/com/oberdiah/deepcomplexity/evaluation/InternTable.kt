@@ -0,0 +1,242 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * A striped hash table keyed directly on an expression's 64-bit structural fingerprint.
+ * Whether it holds its expressions weakly or strongly is down to the [Entry]s [newEntry] makes.
+ *
+ * Lookups are lock-free and allocate nothing. They may miss an entry that is concurrently being
+ * inserted or moved by a resize, but will never return a wrong one; this is fine because every
+ * insertion re-checks its bucket under the stripe lock, and all expressions sharing a fingerprint
+ * share a stripe. That re-check is what upholds "one canonical instance per structure".
+ */
+internal class InternTable(
+    private val ids: AtomicLong,
+    private val newEntry: (fingerprint: Long, expr: Expr<*>, next: Entry?) -> Entry,
+) {
+    sealed interface Entry {
+        val fingerprint: Long
+        var next: Entry?
+
+        /**
+         * The interned expression, or null if it's been collected.
+         */
+        fun get(): Expr<*>?
+    }
+
+    class WeakEntry(
+        override val fingerprint: Long,
+        expr: Expr<*>,
+        queue: ReferenceQueue<Expr<*>>,
+        @Volatile override var next: Entry?,
+    ) : WeakReference<Expr<*>>(expr, queue), Entry
+
+    class StrongEntry(
+        override val fingerprint: Long,
+        private val expr: Expr<*>,
+        @Volatile override var next: Entry?,
+    ) : Entry {
+        override fun get(): Expr<*> = expr
+    }
+
+    internal class Stripe : ReentrantLock() {
+        @Volatile
+        var buckets = AtomicReferenceArray<Entry?>(INITIAL_BUCKETS)
+
+        /**
+         * Only touched while holding the lock.
+         */
+        var count = 0
+    }
+
+    companion object {
+        private const val STRIPE_BITS = 6
+        private const val STRIPES = 1 shl STRIPE_BITS
+        private const val INITIAL_BUCKETS = 64
+
+        private fun spread(fingerprint: Long): Int {
+            val h = (fingerprint xor (fingerprint ushr 32)).toInt()
+            return h xor (h ushr 16)
+        }
+
+        internal fun indexFor(fingerprint: Long, length: Int): Int = spread(fingerprint) and (length - 1)
+    }
+
+    private val stripes = Array(STRIPES) { Stripe() }
+
+    /**
+     * Uses the top bits, as the bottom bits are used for the bucket index within the stripe.
+     */
+    internal fun stripeFor(fingerprint: Long): Stripe =
+        stripes[(spread(fingerprint) ushr (Int.SIZE_BITS - STRIPE_BITS)) and (STRIPES - 1)]
+
+    /**
+     * Runs [block] holding the lock of the stripe that [fingerprint] lives in, so that nothing can be
+     * inserted into or adopted by that stripe in the meantime.
+     */
+    inline fun <R> withStripeLocked(fingerprint: Long, block: () -> R): R {
+        val stripe = stripeFor(fingerprint)
+        stripe.lock()
+        try {
+            return block()
+        } finally {
+            stripe.unlock()
+        }
+    }
+
+    /**
+     * Returns the interned expression structurally equal to [candidate], if there is one.
+     */
+    fun find(fingerprint: Long, candidate: Expr<*>): Expr<*>? = find(fingerprint) { candidate.internMatches(it) }
+
+    /**
+     * Returns the live interned expression with this [fingerprint] that [matches] accepts, if there is one.
+     * Inline so that probing from a factory doesn't even allocate the predicate.
+     */
+    inline fun find(fingerprint: Long, matches: (Expr<*>) -> Boolean): Expr<*>? {
+        val buckets = stripeFor(fingerprint).buckets
+        var entry = buckets.get(indexFor(fingerprint, buckets.length()))
+        while (entry != null) {
+            if (entry.fingerprint == fingerprint) {
+                val existing = entry.get()
+                if (existing != null && matches(existing)) {
+                    return existing
+                }
+            }
+            entry = entry.next
+        }
+        return null
+    }
+
+    /**
+     * Calls [action] on every live expression in the table. Not a snapshot: entries inserted or collected
+     * while this runs may or may not be seen.
+     */
+    fun forEachLive(action: (Expr<*>) -> Unit) {
+        for (stripe in stripes) {
+            val buckets = stripe.buckets
+            for (i in 0 until buckets.length()) {
+                var entry = buckets.get(i)
+                while (entry != null) {
+                    entry.get()?.let(action)
+                    entry = entry.next
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of entries in the table, including any collected ones that haven't been swept yet.
+     * Read without locking, so only approximate while other threads are inserting.
+     */
+    fun size(): Int = stripes.sumOf { it.count }
+
+    /**
+     * Returns the canonical instance for [candidate]'s structure, assigning [candidate] a fresh id and
+     * making it canonical if nobody else got there first.
+     */
+    fun insertIfAbsent(fingerprint: Long, candidate: Expr<*>): Expr<*> = insert(fingerprint, candidate, true)
+
+    /**
+     * Like [insertIfAbsent], but for an expression that has already been interned elsewhere and so
+     * keeps the id it has.
+     */
+    fun adopt(fingerprint: Long, expr: Expr<*>): Expr<*> = insert(fingerprint, expr, false)
+
+    private fun insert(fingerprint: Long, candidate: Expr<*>, assignId: Boolean): Expr<*> {
+        val stripe = stripeFor(fingerprint)
+        stripe.lock()
+        try {
+            val buckets = stripe.buckets
+            val idx = indexFor(fingerprint, buckets.length())
+            val head = buckets.get(idx)
+
+            var entry = head
+            while (entry != null) {
+                if (entry.fingerprint == fingerprint) {
+                    val existing = entry.get()
+                    if (existing != null && candidate.internMatches(existing)) {
+                        return existing
+                    }
+                }
+                entry = entry.next
+            }
+
+            if (assignId) {
+                candidate.assignInternId(ids.getAndIncrement())
+            }
+            buckets.set(idx, newEntry(fingerprint, candidate, head))
+            stripe.count++
+
+            if (stripe.count > buckets.length() - (buckets.length() ushr 2)) {
+                resize(stripe)
+            }
+
+            return candidate
+        } finally {
+            stripe.unlock()
+        }
+    }
+
+    /**
+     * Unlinks a collected entry. Does nothing if a resize has already dropped it.
+     */
+    fun remove(dead: Entry) {
+        val stripe = stripeFor(dead.fingerprint)
+        stripe.lock()
+        try {
+            val buckets = stripe.buckets
+            val idx = indexFor(dead.fingerprint, buckets.length())
+            var prev: Entry? = null
+            var entry = buckets.get(idx)
+            while (entry != null) {
+                if (entry === dead) {
+                    // Readers currently sat on `dead` can still follow its `next` onwards.
+                    if (prev == null) {
+                        buckets.set(idx, entry.next)
+                    } else {
+                        prev.next = entry.next
+                    }
+                    stripe.count--
+                    return
+                }
+                prev = entry
+                entry = entry.next
+            }
+        } finally {
+            stripe.unlock()
+        }
+    }
+
+    /**
+     * Doubles the stripe's bucket array, dropping any collected entries along the way.
+     *
+     * Entries are relinked in place rather than copied. A concurrent reader may get misdirected into
+     * another chain and miss, which is allowed, but can't loop forever: stale links only ever point to
+     * entries relinked after the current one, and fresh links only to entries relinked before it.
+     */
+    private fun resize(stripe: Stripe) {
+        val old = stripe.buckets
+        val new = AtomicReferenceArray<Entry?>(old.length() * 2)
+        for (i in 0 until old.length()) {
+            var entry = old.get(i)
+            while (entry != null) {
+                val next = entry.next
+                if (entry.get() == null) {
+                    stripe.count--
+                } else {
+                    val idx = indexFor(entry.fingerprint, new.length())
+                    entry.next = new.get(idx)
+                    new.set(idx, entry)
+                }
+                entry = next
+            }
+        }
+        stripe.buckets = new
+    }
+}
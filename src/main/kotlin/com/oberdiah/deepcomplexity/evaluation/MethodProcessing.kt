@@ -25,14 +25,21 @@ object MethodProcessing {
      */
     var CURRENT_LINE: PsiElement? = null
 
-    fun getMethodContext(method: PsiMethod): Context {
+    /**
+     * Everything created while processing the method lives in an [ExprPool.Session], so is thrown away
+     * in one go at the end; only what the returned context references survives.
+     */
+    fun getMethodContext(method: PsiMethod): Context = ExprPool.withSession { session ->
         val wrapper = newContext(method.getThisType())
 
         method.body?.let { body ->
             processPsiStatement(body, wrapper)
         }
 
-        return wrapper.c.forcedDynamic()
+        val context = wrapper.c.forcedDynamic()
+        val roots = context.referencedExprs()
+        val canonical = roots.zip(session.promote(roots)).toMap()
+        context.mapReferencedExprs { canonical.getValue(it) }
     }
 
     fun newContext(thisType: PsiType?): ContextWrapper = ContextWrapper(Context.brandNew(thisType))
@@ -0,0 +1,57 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.settings.Settings
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+
+/**
+ * Forks independent sub-evaluations (the operands of a binary expression, or the two branches of an if)
+ * onto the fork-join pool when [Settings.parallelEvaluation] is on and both are large.
+ *
+ * Evaluating an expression only depends on the expression and its constraints, and the per-run cache is
+ * a concurrent map for assistants that can fork, so the result is the same as evaluating in order.
+ * Subtrees shared between the two sides may occasionally get evaluated twice, which is why small ones
+ * aren't worth it.
+ */
+internal object ParallelEvaluator {
+    private fun shouldFork(assistant: EvaluatorAssistant, lhs: Expr<*>, rhs: Expr<*>): Boolean =
+        assistant.canFork && minOf(lhs.summary.treeSize, rhs.summary.treeSize) >= Settings.parallelEvaluationThreshold
+
+    fun <A, B> maybeInParallel(
+        assistant: EvaluatorAssistant,
+        lhsExpr: Expr<*>,
+        rhsExpr: Expr<*>,
+        lhs: () -> A,
+        rhs: () -> B,
+    ): Pair<A, B> {
+        if (!shouldFork(assistant, lhsExpr, rhsExpr)) {
+            return lhs() to rhs()
+        }
+
+        // Whatever the workers create or record needs to end up in the same place it would have done on this thread.
+        val session = ExprPool.currentSession()
+        val metrics = assistant.metrics
+        if (!ForkJoinTask.inForkJoinPool()) {
+            return ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(Callable {
+                onBehalfOf(session, metrics) { inParallel(session, metrics, lhs, rhs) }
+            }))
+        }
+        return inParallel(session, metrics, lhs, rhs)
+    }
+
+    private fun <A, B> inParallel(
+        session: ExprPool.Session?,
+        metrics: EvaluationMetrics,
+        lhs: () -> A,
+        rhs: () -> B
+    ): Pair<A, B> {
+        metrics.forks.increment()
+        val forked = ForkJoinTask.adapt(Callable { onBehalfOf(session, metrics) { rhs() } }).fork()
+        val left = lhs()
+        return left to forked.join()
+    }
+
+    private fun <R> onBehalfOf(session: ExprPool.Session?, metrics: EvaluationMetrics, block: () -> R): R =
+        ExprPool.joinSession(session) { EvaluationMetrics.recordingInto(metrics, block) }
+}
@@ -0,0 +1,127 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.settings.Settings
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * The parallel half of [ExprTreeRebuilder.rewriteInTree], for very large DAGs with
+ * [Settings.parallelRewrites] turned on.
+ *
+ * Nodes are grouped into levels by height above the leaves. Every node in a level only depends on
+ * nodes in lower levels, so a whole level can be rebuilt at once on the fork-join pool. Each node's
+ * rewrite only depends on its children's, and [ExprPool] hands out the same canonical instance
+ * whichever thread asks, so the result is identical to the sequential traversal's.
+ *
+ * Only used for [TreeTraversal.All], where whether a node sits inside an if-condition makes no difference.
+ */
+internal object ParallelRewriter {
+    /**
+     * Below this many nodes a chunk of a level is just done on the current thread.
+     */
+    private const val CHUNK_SIZE = 256
+
+    /**
+     * A cheap first check. [ExprSummary.treeSize] is never smaller than the number of unique nodes, so
+     * anything it rules out is definitely too small; [rewrite] then checks against the real count.
+     */
+    fun mightRunInParallel(root: Expr<*>, treeTraversal: TreeTraversal): Boolean =
+        Settings.parallelRewrites &&
+                treeTraversal == TreeTraversal.All &&
+                root.summary.treeSize >= Settings.parallelRewriteThreshold
+
+    fun rewrite(
+        root: Expr<*>,
+        skipSubtree: (Expr<*>) -> Boolean,
+        cache: ExprTreeRebuilder.RewriteCache,
+        replacer: (Expr<*>) -> Expr<*>,
+    ): Expr<*> {
+        val known = cache.replacements
+        fun isDone(expr: Expr<*>) = skipSubtree(expr) || expr in known
+
+        val ordering = ExprTreeVisitor.getTopologicalOrdering(root)
+        if (ordering.size < Settings.parallelRewriteThreshold) {
+            return ExprTreeRebuilder.rewriteSequentially(root, TreeTraversal.All, skipSubtree, cache, replacer)
+        }
+
+        val indices = ExprIndexSet(ordering.size)
+        ordering.forEach { indices.add(it) }
+
+        // Parents come first in the ordering, so we can work out which nodes actually need rewriting
+        // (i.e. aren't skipped, cached, or only reachable through a skipped or cached node) in one pass.
+        val needed = BooleanArray(ordering.size)
+        needed[0] = !isDone(root)
+        for ((i, expr) in ordering.withIndex()) {
+            if (!needed[i]) continue
+            for (child in expr.directSubExprs) {
+                if (!isDone(child)) needed[indices.indexOf(child)] = true
+            }
+        }
+
+        val results = ConcurrentHashMap<Expr<*>, Expr<*>>()
+        fun resultOf(expr: Expr<*>): Expr<*> =
+            if (skipSubtree(expr)) expr else results[expr] ?: known.getValue(expr)
+
+        val levels = levelsOf(ordering, indices, needed)
+        if (levels.sumOf { it.size } < Settings.parallelRewriteThreshold) {
+            // Most of it was skippable, so not worth the hand-off.
+            return ExprTreeRebuilder.rewriteSequentially(root, TreeTraversal.All, skipSubtree, cache, replacer)
+        }
+
+        ExprPoolMetrics.parallelRewrites.increment()
+        val session = ExprPool.currentSession()
+        val pool = ForkJoinPool.commonPool()
+        for (level in levels) {
+            pool.invoke(LevelTask(level, 0, level.size) { expr ->
+                ExprPool.joinSession(session) {
+                    val rebuilt = ExprTreeRebuilder.rebuild(expr, false) { child, _ -> resultOf(child) }
+                    results[expr] = replacer(rebuilt)
+                }
+            })
+        }
+
+        known.putAll(results)
+        return resultOf(root)
+    }
+
+    /**
+     * Buckets the [needed] nodes by height, lowest first. A node's height is one more than its highest
+     * needed child's, so everything a node depends on is in an earlier bucket.
+     */
+    private fun levelsOf(ordering: List<Expr<*>>, indices: ExprIndexSet, needed: BooleanArray): List<List<Expr<*>>> {
+        val heights = IntArray(ordering.size)
+        val levels = ArrayList<ArrayList<Expr<*>>>()
+        for (i in ordering.indices.reversed()) {
+            if (!needed[i]) continue
+
+            var height = 0
+            for (child in ordering[i].directSubExprs) {
+                val childIdx = indices.indexOf(child)
+                if (needed[childIdx]) height = maxOf(height, heights[childIdx] + 1)
+            }
+            heights[i] = height
+
+            while (levels.size <= height) levels.add(ArrayList())
+            levels[height].add(ordering[i])
+        }
+        return levels
+    }
+
+    private class LevelTask(
+        private val level: List<Expr<*>>,
+        private val from: Int,
+        private val to: Int,
+        private val work: (Expr<*>) -> Unit,
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= CHUNK_SIZE) {
+                for (i in from until to) work(level[i])
+            } else {
+                ExprPoolMetrics.parallelRewriteForks.increment()
+                val mid = (from + to) ushr 1
+                invokeAll(LevelTask(level, from, mid, work), LevelTask(level, mid, to, work))
+            }
+        }
+    }
+}
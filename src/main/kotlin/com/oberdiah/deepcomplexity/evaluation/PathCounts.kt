@@ -0,0 +1,115 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import java.math.BigInteger
+
+/**
+ * A fixed-size array of non-negative counts. Entries are plain longs until they overflow, at which point
+ * just that entry is escalated to a [BigInteger].
+ */
+internal class CountArray(size: Int) {
+    private val small = LongArray(size)
+    private var big: Array<BigInteger?>? = null
+
+    operator fun get(i: Int): BigInteger = big?.get(i) ?: BigInteger.valueOf(small[i])
+
+    operator fun set(i: Int, value: Long) {
+        require(value >= 0) { "Counts can't be negative." }
+        big?.set(i, null)
+        small[i] = value
+    }
+
+    /**
+     * `this[i] += other[j]`
+     */
+    fun addFrom(i: Int, other: CountArray, j: Int) {
+        if (big?.get(i) == null && other.big?.get(j) == null) {
+            // Both sides are non-negative, so the sum has overflowed if and only if it's gone negative.
+            val sum = small[i] + other.small[j]
+            if (sum >= 0) {
+                small[i] = sum
+                return
+            }
+        }
+        escalate(i, this[i] + other[j])
+    }
+
+    fun increment(i: Int) {
+        if (big?.get(i) == null && small[i] != Long.MAX_VALUE) {
+            small[i]++
+        } else {
+            escalate(i, this[i] + BigInteger.ONE)
+        }
+    }
+
+    fun sum(): BigInteger {
+        var total = BigInteger.ZERO
+        var runningSmall = 0L
+        for (i in small.indices) {
+            val b = big?.get(i)
+            if (b != null) {
+                total += b
+                continue
+            }
+            val next = runningSmall + small[i]
+            if (next < 0) {
+                total += BigInteger.valueOf(runningSmall)
+                runningSmall = small[i]
+            } else {
+                runningSmall = next
+            }
+        }
+        return total + BigInteger.valueOf(runningSmall)
+    }
+
+    private fun escalate(i: Int, value: BigInteger) {
+        val big = big ?: arrayOfNulls<BigInteger>(small.size).also { big = it }
+        big[i] = value
+    }
+}
+
+/**
+ * For every node in the DAG below [root], how many distinct paths lead to it from [root]. Equivalently,
+ * how many times that node would appear if the DAG were expanded out into a tree.
+ *
+ * Computed in one pass over the topological ordering, so it's linear in the number of unique nodes
+ * and edges, however large the expanded tree would be.
+ */
+class PathCounts private constructor(
+    /**
+     * Every unique node below the root, parents always before their children.
+     */
+    val ordering: List<Expr<*>>,
+    private val indices: ExprIndexSet,
+    private val counts: CountArray,
+) {
+    /**
+     * The number of nodes in the fully expanded tree.
+     */
+    val treeSize: BigInteger by lazy { counts.sum() }
+
+    fun pathsTo(expr: Expr<*>): BigInteger = counts[indexOf(expr)]
+
+    internal fun indexOf(expr: Expr<*>): Int = indices.indexOf(expr).also {
+        require(it >= 0) { "$expr is not part of this DAG." }
+    }
+
+    companion object {
+        fun of(root: Expr<*>): PathCounts {
+            val ordering = ExprTreeVisitor.getTopologicalOrdering(root)
+            // Added in order, so each node's index is its position in the ordering.
+            val indices = ExprIndexSet(ordering.size)
+            ordering.forEach { indices.add(it) }
+
+            val counts = CountArray(ordering.size)
+            counts[0] = 1
+            for ((i, expr) in ordering.withIndex()) {
+                // Children are visited once per edge, so a node that uses the same child twice counts it twice.
+                for (child in expr.directSubExprs) {
+                    counts.addFrom(indices.indexOf(child), counts, i)
+                }
+            }
+
+            return PathCounts(ordering, indices, counts)
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * How much normalising piles of constraints (see
+ * [com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile]) shrinks them.
+ *
+ * Unlike [WideningMetrics] none of this loses any precision; a normalised pile lets through exactly what it
+ * did before, it just takes fewer entries to say so.
+ */
+object PileMetrics {
+    /**
+     * Piles of more than one entry that went through normalisation, and how many entries they had
+     * going in and coming out.
+     */
+    internal val normalised = LongAdder()
+    internal val entriesBefore = LongAdder()
+    internal val entriesAfter = LongAdder()
+
+    /**
+     * Entries removed for being unreachable, or for only letting through what another entry already does.
+     */
+    internal val unreachableDropped = LongAdder()
+    internal val subsumed = LongAdder()
+
+    /**
+     * Entries folded into another that only differed from them on a single key.
+     */
+    internal val merged = LongAdder()
+
+    /**
+     * Piles that were too long for the subsumption and merging passes, so only had unreachable entries dropped.
+     */
+    internal val tooLargeToNormalise = LongAdder()
+
+    data class Snapshot(
+        val normalised: Long,
+        val entriesBefore: Long,
+        val entriesAfter: Long,
+        val unreachableDropped: Long,
+        val subsumed: Long,
+        val merged: Long,
+        val tooLargeToNormalise: Long,
+    ) {
+        operator fun minus(earlier: Snapshot): Snapshot = Snapshot(
+            normalised = normalised - earlier.normalised,
+            entriesBefore = entriesBefore - earlier.entriesBefore,
+            entriesAfter = entriesAfter - earlier.entriesAfter,
+            unreachableDropped = unreachableDropped - earlier.unreachableDropped,
+            subsumed = subsumed - earlier.subsumed,
+            merged = merged - earlier.merged,
+            tooLargeToNormalise = tooLargeToNormalise - earlier.tooLargeToNormalise,
+        )
+
+        override fun toString(): String = buildString {
+            appendLine("Piles:")
+            if (tooLargeToNormalise > 0) {
+                appendLine("\tToo large to normalise: $tooLargeToNormalise")
+            }
+            if (normalised == 0L) {
+                appendLine("\tNone normalised")
+                return@buildString
+            }
+            val before = entriesBefore.toDouble() / normalised
+            val after = entriesAfter.toDouble() / normalised
+            appendLine(
+                "\t$normalised normalised, ${"%.2f".format(before)} entries on average before, " +
+                        "${"%.2f".format(after)} after"
+            )
+            appendLine("\tUnreachable dropped: $unreachableDropped, subsumed: $subsumed, merged: $merged")
+        }
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        normalised = normalised.sum(),
+        entriesBefore = entriesBefore.sum(),
+        entriesAfter = entriesAfter.sum(),
+        unreachableDropped = unreachableDropped.sum(),
+        subsumed = subsumed.sum(),
+        merged = merged.sum(),
+        tooLargeToNormalise = tooLargeToNormalise.sum(),
+    )
+}
@@ -0,0 +1,153 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+
+/**
+ * An [EvaluatorAssistant] that also records a readable account of how every expression evaluated,
+ * retrievable with [getTrace]. Building that is far from free, so only use this where someone's going
+ * to read it.
+ */
+class TracingEvaluatorAssistant private constructor(
+    private val tagsMap: TagsMap,
+    private val path: EvaluationPath,
+    // Mutable, and the one instance is shared between tracers, which can be confusing.
+    private val evaluatedStrings: MutableMap<EvaluationPath, String>,
+    expressionCache: MutableMap<ExprEvaluate.CacheKey, Bundle<*>>,
+    constraintCache: MutableMap<ExprEvaluate.CacheKey, ConstraintsOrPile>,
+    sharedCache: EvaluationCache?,
+    budget: AnalysisBudget,
+    metrics: EvaluationMetrics,
+) : EvaluatorAssistant(expressionCache, constraintCache, sharedCache, budget, metrics) {
+    companion object {
+        fun createInitial(
+            tagsMap: TagsMap,
+            sharedCache: EvaluationCache? = null,
+            budget: AnalysisBudget = AnalysisBudget.fromSettings()
+        ): TracingEvaluatorAssistant =
+            TracingEvaluatorAssistant(
+                tagsMap,
+                EvaluationPath.ROOT,
+                mutableMapOf(),
+                mutableMapOf(),
+                mutableMapOf(),
+                sharedCache,
+                budget,
+                EvaluationMetrics()
+            )
+    }
+
+    override fun direction(direction: Direction): EvaluatorAssistant =
+        TracingEvaluatorAssistant(
+            tagsMap,
+            path.then(direction),
+            evaluatedStrings,
+            expressionCache,
+            constraintCache,
+            sharedCache,
+            budget,
+            metrics
+        )
+
+    fun getTrace(): String {
+        val mainStr = "${ExpressionTagger.tagsToString(tagsMap)}\n${evaluatedStrings[EvaluationPath.ROOT]!!}"
+
+        return if (likelyCompromised) {
+            mainStr + "\nThe tracer's sanity checks were disabled because the TEST_FILTER" +
+                    " environment variable was set to 'go',\nso this trace will likely be inaccurate " +
+                    "if you've performed any instruction-pointer-moving debugging."
+        } else {
+            mainStr
+        }
+    }
+
+    private val likelyCompromised: Boolean get() = System.getenv("TEST_FILTER") == "go"
+
+    override fun trace(expr: Expr<*>, bundle: Bundle<*>) {
+        fun getStr(direction: DirectionEnum, fallback: Expr<*>): String {
+            return evaluatedStrings.getOrElse(path.then(direction)) {
+//                "<| NOT EVALUATED |>"
+                "${ExprToString.toStringWithTags(fallback, tagsMap)} = <| NOT EVALUATED |>"
+            }
+        }
+
+        val myResult = "<| ${bundle.toDebugString()} |>"
+
+        if (!likelyCompromised) {
+            require(path !in evaluatedStrings) {
+                "Path already evaluated: $path"
+            }
+        }
+
+        evaluatedStrings[path] = tagsMap[expr] ?: when (expr) {
+            is ArithmeticExpr -> {
+                val lhsStr = getStr(DirectionEnum.Left, expr.lhs)
+                val rhsStr = getStr(DirectionEnum.Right, expr.rhs)
+
+                if (!lhsStr.contains("|>") && !rhsStr.contains("|>")) {
+                    "(${lhsStr} ${expr.op} ${rhsStr}) = $myResult"
+                } else {
+                    "${lhsStr.prependIndent("| ")}\n" +
+                            "|-> ${expr.op}\n" +
+                            "${rhsStr.prependIndent("| ")}\n" +
+                            "| = $myResult"
+                }
+            }
+
+            is NegateExpr -> "-${getStr(DirectionEnum.Only, expr.expr)}"
+
+            is ComparisonExpr<*> -> "(${
+                getStr(DirectionEnum.Left, expr.lhs)
+            } ${expr.comp} ${
+                getStr(DirectionEnum.Right, expr.rhs)
+            }) = $myResult"
+
+            is ConstExpr<*> -> expr.value.toString()
+            is IfExpr -> {
+                "if ${ExprToString.toStringWithTags(expr.thisCondition, tagsMap)} {\n${
+                    getStr(DirectionEnum.True, expr.trueExpr).prependIndent()
+                }\n} else {\n${
+                    getStr(DirectionEnum.False, expr.falseExpr).prependIndent()
+                }\n} = $myResult"
+            }
+
+            is BooleanInvertExpr -> "!${getStr(DirectionEnum.Only, expr.expr)} = $myResult"
+
+            is BooleanOpExpr -> "(${
+                getStr(DirectionEnum.Left, expr.lhs)
+            } ${expr.op} ${
+                getStr(DirectionEnum.Right, expr.rhs)
+            })"
+
+            is VariableExpr -> expr.key.toString()
+            is TypeCastExpr<*, *> -> {
+                if (expr.explicit) {
+                    "(${expr.ind}) ${getStr(DirectionEnum.Only, expr.expr)}"
+                } else {
+                    getStr(DirectionEnum.Only, expr.expr)
+                }
+            }
+
+            is VarsExpr -> "CtxExpr"
+            is LoopExpr<*> -> {
+                // todo loops
+                val target = expr.target
+                // Obviously, not implemented with evaluation values in mind at the moment, this
+                // is just to get us off the ground.
+                val condition = ExprToString.toStringWithTags(expr.condition, tagsMap)
+                val variables = expr.variables.entries.joinToString("\n") { (key, value) ->
+                    "$key: { initial: ${ExprToString.toStringWithTags(value.initialState, tagsMap)}, next: ${
+                        ExprToString.toStringWithTags(value.update, tagsMap)
+                    } }"
+                }
+
+                "Loop(\n  target: $target\n  condition: $condition\n  variables: {\n${
+                    variables.prependIndent("    ")
+                }\n  }\n)"
+            }
+
+            is LoopExpr.LoopLeaf<*> -> "${expr.key}"
+            is LoopExpr.ConstEvaluatedLeaf<*> -> "${expr.value}"
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.oberdiah.deepcomplexity.evaluation
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * How often analysis had to give up some precision to stay within its limits, by which limit was hit.
+ *
+ * Each of these is sound; the result is only ever a superset of what it would have been, so a method
+ * that hits them a lot will just come out with wider ranges than expected rather than failing.
+ */
+object WideningMetrics {
+    /**
+     * Expressions evaluated straight to their type's full set because the [AnalysisBudget] ran out of
+     * time or nodes.
+     */
+    internal val outOfTime = LongAdder()
+    internal val outOfNodes = LongAdder()
+
+    /**
+     * Bundles wider than [AnalysisBudget.maxBundleWidth], collapsed to the set of values they could take.
+     */
+    internal val bundlesCollapsed = LongAdder()
+
+    /**
+     * Individual constraints dropped to keep a
+     * [com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Constraints] under its key limit.
+     */
+    internal val constraintsDropped = LongAdder()
+
+    /**
+     * Piles of constraints joined into a single entry for being too long.
+     */
+    internal val pilesJoined = LongAdder()
+
+    /**
+     * Gaps filled in between ranges of a number set to keep it under its range limit.
+     */
+    internal val rangesMerged = LongAdder()
+
+    /**
+     * Tracked keys folded into the constant term of a number variance to keep it under its multiplier limit.
+     */
+    internal val multipliersFolded = LongAdder()
+
+    data class Snapshot(
+        val outOfTime: Long,
+        val outOfNodes: Long,
+        val bundlesCollapsed: Long,
+        val constraintsDropped: Long,
+        val pilesJoined: Long,
+        val rangesMerged: Long,
+        val multipliersFolded: Long,
+    ) {
+        operator fun minus(earlier: Snapshot): Snapshot = Snapshot(
+            outOfTime = outOfTime - earlier.outOfTime,
+            outOfNodes = outOfNodes - earlier.outOfNodes,
+            bundlesCollapsed = bundlesCollapsed - earlier.bundlesCollapsed,
+            constraintsDropped = constraintsDropped - earlier.constraintsDropped,
+            pilesJoined = pilesJoined - earlier.pilesJoined,
+            rangesMerged = rangesMerged - earlier.rangesMerged,
+            multipliersFolded = multipliersFolded - earlier.multipliersFolded,
+        )
+
+        val total: Long
+            get() = outOfTime + outOfNodes + bundlesCollapsed + constraintsDropped +
+                    pilesJoined + rangesMerged + multipliersFolded
+
+        override fun toString(): String = buildString {
+            appendLine("Widenings:")
+            appendLine("\tOut of budget: $outOfTime expressions out of time, $outOfNodes out of nodes")
+            appendLine("\tBundles collapsed: $bundlesCollapsed")
+            appendLine("\tConstraints dropped: $constraintsDropped, piles joined: $pilesJoined")
+            appendLine("\tRange gaps filled: $rangesMerged, multipliers folded: $multipliersFolded")
+        }
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        outOfTime = outOfTime.sum(),
+        outOfNodes = outOfNodes.sum(),
+        bundlesCollapsed = bundlesCollapsed.sum(),
+        constraintsDropped = constraintsDropped.sum(),
+        pilesJoined = pilesJoined.sum(),
+        rangesMerged = rangesMerged.sum(),
+        multipliersFolded = multipliersFolded.sum(),
+    )
+}
@@ -5,7 +5,7 @@ import com.oberdiah.deepcomplexity.evaluation.*
 object ComparisonSimplification {
     private sealed interface Result
     private data class SimplerComparison(val lhs: Expr<*>, val rhs: Expr<*>, val comp: ComparisonOp) : Result {
-        val size get() = (lhs.recursiveSubExprs + rhs.recursiveSubExprs).size + 1
+        val size get() = ExprTreeVisitor.uniqueNodeCount(lhs, rhs) + 1
     }
 
     private data class NoLongerAComparison(val expr: Expr<Boolean>) : Result
@@ -6,7 +6,7 @@ import com.oberdiah.deepcomplexity.evaluation.*
 object IfSimplification {
     private sealed interface Result
     private data class SimplerIf(val trueExpr: Expr<*>, val falseExpr: Expr<*>, val cond: Expr<Boolean>) : Result {
-        val size get() = (trueExpr.recursiveSubExprs + falseExpr.recursiveSubExprs + cond.recursiveSubExprs).size + 1
+        val size get() = ExprTreeVisitor.uniqueNodeCount(trueExpr, falseExpr, cond) + 1
     }
 
     private data class NoLongerAnIf(val expr: Expr<*>) : Result
@@ -0,0 +1,24 @@
+package com.oberdiah.deepcomplexity.services
+
+import com.intellij.openapi.components.Service
+import com.oberdiah.deepcomplexity.evaluation.EvaluationCache
+import com.oberdiah.deepcomplexity.evaluation.EvaluatorAssistant
+import com.oberdiah.deepcomplexity.evaluation.Expr
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+
+/**
+ * Holds the project's [EvaluationCache], so evaluations of the same expressions share results across runs.
+ */
+@Service(Service.Level.PROJECT)
+class EvaluationCacheService {
+    val cache = EvaluationCache(Settings.evaluationCacheMaxWeight)
+
+    /**
+     * Evaluates [expr] with nothing known about its inputs, reusing whatever earlier evaluations in this
+     * project already worked out. This is how anything outside of tests should be evaluating.
+     */
+    fun evaluate(expr: Expr<*>): Bundle<*> =
+        expr.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial(sharedCache = cache))
+}
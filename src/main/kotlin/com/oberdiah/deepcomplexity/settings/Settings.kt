@@ -16,4 +16,60 @@ object Settings {
     var overflowBehaviour: OverflowBehaviour = OverflowBehaviour.ALLOW
     var overflowWarns: Boolean = false
 
+    /**
+     * The range of int and long constants that are kept permanently pre-interned.
+     * Only read the first time a constant is created, so changing it afterwards has no effect.
+     */
+    var smallConstantRange: IntRange = -128..1023
+
+    /**
+     * Roughly one in this many calls to [com.oberdiah.deepcomplexity.evaluation.ExprPool] interning
+     * are timed for [com.oberdiah.deepcomplexity.evaluation.ExprPoolMetrics]. Zero turns timing off.
+     */
+    var exprPoolLatencySampleRate: Int = 64
+
+    /**
+     * Whether very large tree rewrites may be spread across the common fork-join pool.
+     * Only worth it for DAGs of at least [parallelRewriteThreshold] unique nodes; anything smaller always
+     * runs sequentially.
+     */
+    var parallelRewrites: Boolean = false
+    var parallelRewriteThreshold: Int = 20_000
+
+    /**
+     * The total weight, in bundle variances, that the project-wide
+     * [com.oberdiah.deepcomplexity.evaluation.EvaluationCache] holds before it starts evicting.
+     * Only read when the cache is created.
+     */
+    var evaluationCacheMaxWeight: Long = 200_000
+
+    /**
+     * Whether untraced evaluation may fork independent operands and if-branches onto the common fork-join pool.
+     * Only done when both sides expand to at least [parallelEvaluationThreshold] nodes.
+     */
+    var parallelEvaluation: Boolean = false
+    var parallelEvaluationThreshold: Int = 5_000
+
+    /**
+     * Whether sub-expressions are evaluated under only the constraints they may depend on, so that callers
+     * differing only in unrelated constraints share a cache entry. Off until it's been shown to pay for itself,
+     * as results widened at [maxConstraintKeys] can come out differently with it on.
+     */
+    var projectConstraints: Boolean = false
+
+    /**
+     * The defaults for [com.oberdiah.deepcomplexity.evaluation.AnalysisBudget]. A time budget of zero is no limit.
+     */
+    var evaluationTimeBudgetMillis: Long = 30_000
+    var evaluationNodeBudget: Long = 5_000_000
+    var maxBundleWidth: Int = 49
+
+    /**
+     * Past these sizes, constraints, piles of constraints and number variances are widened to fit rather than
+     * being allowed to keep growing.
+     */
+    var maxConstraintKeys: Int = 9
+    var maxPileSize: Int = 9
+    var maxMultipliers: Int = 9
+
 }
\ No newline at end of file
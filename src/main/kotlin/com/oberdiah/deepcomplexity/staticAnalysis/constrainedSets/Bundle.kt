@@ -2,6 +2,7 @@ package com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets
 
 import com.oberdiah.deepcomplexity.context.EvaluationKey
 import com.oberdiah.deepcomplexity.context.HeapMarker
+import com.oberdiah.deepcomplexity.evaluation.EvaluationMetrics
 import com.oberdiah.deepcomplexity.staticAnalysis.CanBeCast
 import com.oberdiah.deepcomplexity.staticAnalysis.Indicator
 import com.oberdiah.deepcomplexity.staticAnalysis.sets.ISet
@@ -51,12 +52,8 @@ data class Bundle<T : Any> private constructor(
     override val ind: Indicator<T>,
     private val variances: Set<ConstrainedVariances<T>>
 ) : CanBeCast<T> {
-    init {
-        require(variances.size < 50) {
-            "Bundle has far too many variances: ${variances.size} ($variances)"
-        }
-    }
-
+    // There's no hard limit on how many variances a bundle can have; bundles that get too wide are collapsed
+    // by the evaluator instead, see [com.oberdiah.deepcomplexity.evaluation.AnalysisBudget.maxBundleWidth].
     companion object {
         fun <T : Any> unconstrainedConstant(a: T): Bundle<T> =
             unconstrained(Indicator.fromValue(a).newConstantSet(a).toConstVariance())
@@ -64,6 +61,11 @@ data class Bundle<T : Any> private constructor(
         fun <T : Any> unconstrainedKey(key: EvaluationKey<T>): Bundle<T> =
             unconstrained(key.makeVarianceRepresentingOneOf())
 
+        /**
+         * A bundle that could be any of the values in [set], with no idea where any of them came from.
+         */
+        fun <T : Any> unconstrainedSet(set: ISet<T>): Bundle<T> = unconstrained(set.toConstVariance())
+
         private fun <T : Any> unconstrained(variances: Variances<T>): Bundle<T> {
             return Bundle(
                 variances.ind,
@@ -107,6 +109,8 @@ data class Bundle<T : Any> private constructor(
         }
     }
 
+    val varianceCount: Int get() = variances.size
+
     fun isEmpty(): Boolean {
         return variances.isEmpty() || variances.all { it.constraints.unreachable }
     }
@@ -190,16 +194,18 @@ data class Bundle<T : Any> private constructor(
             "Cannot perform binary operation on bundles with different indicators: $ind vs ${other.ind}"
         }
 
-        val newBundles = mutableSetOf<ConstrainedVariances<Q>>()
-        for (myBundle in variances) {
-            for (otherBundle in other.variances) {
-                val newConstraints = myBundle.constraints.and(otherBundle.constraints)
-                if (newConstraints.unreachable) continue
-                newBundles.add(op(myBundle.variances, otherBundle.variances, newConstraints))
+        return EvaluationMetrics.time(EvaluationMetrics.Section.BINARY_MAP) {
+            val newBundles = mutableSetOf<ConstrainedVariances<Q>>()
+            for (myBundle in variances) {
+                for (otherBundle in other.variances) {
+                    val newConstraints = myBundle.constraints.and(otherBundle.constraints)
+                    if (newConstraints.unreachable) continue
+                    newBundles.add(op(myBundle.variances, otherBundle.variances, newConstraints))
+                }
             }
-        }
 
-        return Bundle(newInd, newBundles)
+            Bundle(newInd, newBundles)
+        }
     }
 
     /**
@@ -1,11 +1,13 @@
 package com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets
 
 import com.oberdiah.deepcomplexity.context.EvaluationKey
+import com.oberdiah.deepcomplexity.evaluation.WideningMetrics
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.staticAnalysis.numberSimplification.ConversionsAndPromotion
 import com.oberdiah.deepcomplexity.staticAnalysis.sets.BooleanSet
 import com.oberdiah.deepcomplexity.staticAnalysis.sets.ISet
-import com.oberdiah.deepcomplexity.utilities.Functional
 import com.oberdiah.deepcomplexity.utilities.Utilities.WONT_IMPLEMENT
+import com.oberdiah.deepcomplexity.utilities.WeakInterner
 
 /**
  * All constraints in the map must be true, it in-effect acts as an AND.
@@ -21,52 +23,144 @@ import com.oberdiah.deepcomplexity.utilities.Utilities.WONT_IMPLEMENT
  * In this case, we know a > 2 and b < 10, and `hello` equaling 5 has to be
  * burdened with that information, despite the fact that `hello` is not
  * actually used in the condition.
+ *
+ * These get created, compared and hashed in the tightest loops of evaluation, so rather than a map they're
+ * a pair of small arrays sorted by key id (see [keyIds]). That makes [and] a linear merge, and lets us
+ * work out [unreachable] once up front. Canonical instances can be had with [interned].
  */
-@ConsistentCopyVisibility
-data class Constraints private constructor(
-    // A key not in the map can be considered unconstrained, so an empty map is completely unconstrained.
-    val constraints: Map<EvaluationKey<*>, ISet<*>>,
+class Constraints private constructor(
+    /**
+     * Ascending. Ids of keys from [keyIds], so equal keys always have equal ids.
+     */
+    private val ids: IntArray,
+    private val keys: Array<EvaluationKey<*>>,
+    private val sets: Array<ISet<*>>,
 ) {
-    init {
-        require(constraints.size < 10) {
-            "No reason for 10 to be the upper bound, but I thought I ought to know about it. Found: ${constraints.size}"
-        }
-    }
-
     /**
      * The constraints as a whole are unsatisfiable if any individual
      * constraint is unsatisfiable as the map of constraints acts as an AND.
      */
-    val unreachable
-        get() = constraints.any { it.value.isEmpty() }
+    val unreachable: Boolean = sets.any { it.isEmpty() }
+
+    // Benignly racy; worst case a few threads all work out the same hash.
+    private var hash = 0
+
+    @Volatile
+    private var isCanonical = false
 
     companion object {
+        private val keyIds = WeakInterner<EvaluationKey<*>>()
+        private val interner = WeakInterner<Constraints>()
+
+        private val UNCONSTRAINED = Constraints(IntArray(0), emptyArray(), emptyArray())
+        private val UNREACHABLE = single(EvaluationKey.ConstantKey, BooleanSet.NEITHER)
+
         fun completelyUnconstrained(): Constraints {
-            return Constraints(emptyMap())
+            return UNCONSTRAINED
         }
 
         fun unreachable(): Constraints {
-            return Constraints(mapOf(EvaluationKey.ConstantKey to BooleanSet.NEITHER))
+            return UNREACHABLE
+        }
+
+        private fun single(key: EvaluationKey<*>, set: ISet<*>): Constraints {
+            // Keys are always stored as their canonical instance, which keeps their id alive as long as we are.
+            val (canonical, id) = keyIds.internWithId(key)
+            return Constraints(intArrayOf(id), arrayOf(canonical), arrayOf(set))
+        }
+
+        /**
+         * Keeps [size] entries of the arrays within [Settings.maxConstraintKeys] by forgetting about the least
+         * important keys. Knowing less about a key only ever lets more through, so this is always sound.
+         */
+        private fun withinLimit(
+            ids: IntArray,
+            keys: Array<EvaluationKey<*>?>,
+            sets: Array<ISet<*>?>,
+            size: Int
+        ): Constraints {
+            val dropping = size - Settings.maxConstraintKeys
+            if (dropping <= 0) {
+                return trimmed(ids, keys, sets, size)
+            }
+
+            if ((0 until size).any { sets[it]!!.isEmpty() }) {
+                return unreachable()
+            }
+
+            WideningMetrics.constraintsDropped.add(dropping.toLong())
+            // Ties are broken on the keys' text rather than their ids, which depend on the order keys happened
+            // to be interned in, so which keys survive doesn't change from run to run.
+            val names = arrayOfNulls<String>(size)
+            fun nameOf(i: Int): String = names[i] ?: keys[i].toString().also { names[i] = it }
+            val keeping = (0 until size)
+                .sortedWith(compareByDescending<Int> { keys[it]!!.importance() }.thenBy { nameOf(it) })
+                .take(Settings.maxConstraintKeys)
+                .sorted()
+            return Constraints(
+                IntArray(keeping.size) { ids[keeping[it]] },
+                Array(keeping.size) { keys[keeping[it]]!! },
+                Array(keeping.size) { sets[keeping[it]]!! },
+            )
         }
+
+        private fun trimmed(ids: IntArray, keys: Array<EvaluationKey<*>?>, sets: Array<ISet<*>?>, size: Int) =
+            Constraints(
+                if (size == ids.size) ids else ids.copyOf(size),
+                Array(size) { keys[it]!! },
+                Array(size) { sets[it]!! },
+            )
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is Constraints) return false
+        if (hashCode() != other.hashCode()) return false
+        // Equal ids means equal keys.
+        return ids.contentEquals(other.ids) && sets.contentEquals(other.sets)
+    }
+
+    override fun hashCode(): Int {
+        var h = hash
+        if (h == 0) {
+            h = 31 * ids.contentHashCode() + sets.contentHashCode()
+            if (h == 0) h = 1
+            hash = h
+        }
+        return h
     }
 
     override fun toString(): String {
         if (unreachable) return "unreachable"
-        if (constraints.isEmpty()) return "unconstrained"
-        return constraints.entries.joinToString(" ") { (key, bundle) ->
-            "$key[$bundle]"
-        }
+        if (keys.isEmpty()) return "unconstrained"
+        return keys.indices.joinToString(" ") { "${keys[it]}[${sets[it]}]" }
+    }
+
+    /**
+     * The canonical instance equal to this one. Comparing canonical instances is just a pointer comparison.
+     */
+    fun interned(): Constraints {
+        if (isCanonical) return this
+        return interner.intern(this).also { it.isCanonical = true }
     }
 
+    /**
+     * Every key that's constrained and how. Built fresh on each call, so not for anywhere hot.
+     */
+    val constraints: Map<EvaluationKey<*>, ISet<*>>
+        get() = keys.indices.associate { keys[it] to sets[it] }
+
     fun isUnconstrained(): Boolean {
-        return constraints.isEmpty()
+        return keys.isEmpty()
     }
 
     /**
      * Returns how the key is constrained. The set returned will always match the key's indicator.
      */
     fun getConstraint(key: EvaluationKey<*>): ISet<*> {
-        val retVal = constraints[key] ?: key.ind.newFullSet()
+        // There's only ever a handful of keys, so a scan beats looking up the key's id.
+        val index = keys.indexOf(key)
+        val retVal = if (index >= 0) sets[index] else key.ind.newFullSet()
         require(key.ind == retVal.ind)
         return retVal
     }
@@ -78,7 +172,80 @@ data class Constraints private constructor(
         require(key.ind == iSet.ind) {
             "Key and set must have the same type. (${key.ind} != ${iSet.ind})"
         }
-        return and(Constraints(mapOf(key to iSet)))
+
+        // Narrowing a key we already have doesn't need its id looking up again.
+        val index = keys.indexOf(key)
+        if (index >= 0) {
+            val newSets = sets.copyOf()
+            newSets[index] = ConversionsAndPromotion.coerceAToB(sets[index], iSet).map { a, b -> a.intersect(b) }
+            return Constraints(ids, keys, newSets)
+        }
+        return and(single(key, iSet))
+    }
+
+    /**
+     * Splits these constraints into those on keys matching [predicate] and the rest.
+     * `and`ing the two halves back together gives these constraints again.
+     */
+    fun partition(predicate: (EvaluationKey<*>) -> Boolean): Pair<Constraints, Constraints> {
+        val (matching, rest) = keys.indices.partition { predicate(keys[it]) }
+        return select(matching) to select(rest)
+    }
+
+    private fun select(indices: List<Int>): Constraints {
+        if (indices.size == keys.size) return this
+        return Constraints(
+            IntArray(indices.size) { ids[indices[it]] },
+            Array(indices.size) { keys[indices[it]] },
+            Array(indices.size) { sets[indices[it]] },
+        )
+    }
+
+    /**
+     * Whether everything that meets these constraints also meets [other], as far as the sets can tell us.
+     * Getting this wrong in the `false` direction just means a missed chance to simplify.
+     */
+    fun implies(other: Constraints): Boolean {
+        if (unreachable) return true
+        if (other.unreachable) return false
+
+        var i = 0
+        for (j in other.ids.indices) {
+            while (i < ids.size && ids[i] < other.ids[j]) i++
+            val theirs = other.sets[j]
+            if (i < ids.size && ids[i] == other.ids[j]) {
+                if (!isSubset(sets[i], theirs)) return false
+            } else if (!theirs.isFull()) {
+                // We don't constrain this key at all, they do.
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun isSubset(a: ISet<*>, b: ISet<*>): Boolean =
+        a == b || ConversionsAndPromotion.coerceAToB(a, b).map { x, y -> x.intersect(y) == x }
+
+    /**
+     * If this and [other] constrain the same keys and only differ on one of them, the single [Constraints]
+     * that's met exactly when either of them is. Otherwise null.
+     */
+    fun mergedWith(other: Constraints): Constraints? {
+        if (unreachable || other.unreachable || !ids.contentEquals(other.ids)) return null
+
+        var differing = -1
+        for (i in sets.indices) {
+            if (sets[i] == other.sets[i]) continue
+            if (differing >= 0) return null
+            differing = i
+        }
+        if (differing < 0) return this
+
+        val newSets = sets.copyOf()
+        newSets[differing] = ConversionsAndPromotion.coerceAToB(sets[differing], other.sets[differing]).map { a, b ->
+            a.union(b)
+        }
+        return Constraints(ids, keys, newSets)
     }
 
     @Suppress("unused")
@@ -96,11 +263,85 @@ data class Constraints private constructor(
     fun and(other: Constraints): Constraints {
         if (unreachable) return this
         if (other.unreachable) return other
+        if (other.isUnconstrained() || other === this) return this
+        if (isUnconstrained()) return other
 
-        val newConstraints = Functional.mergeMapsUnion(this.constraints, other.constraints) { lhs, rhs ->
-            ConversionsAndPromotion.coerceAToB(lhs, rhs).map { a, b -> a.intersect(b) }
+        val size = ids.size + other.ids.size
+        val newIds = IntArray(size)
+        val newKeys = arrayOfNulls<EvaluationKey<*>>(size)
+        val newSets = arrayOfNulls<ISet<*>>(size)
+
+        var i = 0
+        var j = 0
+        var n = 0
+        while (i < ids.size && j < other.ids.size) {
+            when {
+                ids[i] < other.ids[j] -> {
+                    newIds[n] = ids[i]; newKeys[n] = keys[i]; newSets[n] = sets[i]
+                    i++
+                }
+
+                ids[i] > other.ids[j] -> {
+                    newIds[n] = other.ids[j]; newKeys[n] = other.keys[j]; newSets[n] = other.sets[j]
+                    j++
+                }
+
+                else -> {
+                    newIds[n] = ids[i]; newKeys[n] = keys[i]
+                    newSets[n] = ConversionsAndPromotion.coerceAToB(sets[i], other.sets[j]).map { a, b ->
+                        a.intersect(b)
+                    }
+                    i++
+                    j++
+                }
+            }
+            n++
+        }
+        while (i < ids.size) {
+            newIds[n] = ids[i]; newKeys[n] = keys[i]; newSets[n] = sets[i]
+            i++
+            n++
         }
+        while (j < other.ids.size) {
+            newIds[n] = other.ids[j]; newKeys[n] = other.keys[j]; newSets[n] = other.sets[j]
+            j++
+            n++
+        }
+
+        return withinLimit(newIds, newKeys, newSets, n)
+    }
+
+    /**
+     * A single [Constraints] that's met whenever either this or [other] is. Only keys constrained on both sides
+     * stay constrained, to the union of the two sets.
+     */
+    fun join(other: Constraints): Constraints {
+        if (unreachable) return other
+        if (other.unreachable) return this
 
-        return Constraints(newConstraints)
+        val size = minOf(ids.size, other.ids.size)
+        val newIds = IntArray(size)
+        val newKeys = arrayOfNulls<EvaluationKey<*>>(size)
+        val newSets = arrayOfNulls<ISet<*>>(size)
+
+        var i = 0
+        var j = 0
+        var n = 0
+        while (i < ids.size && j < other.ids.size) {
+            when {
+                ids[i] < other.ids[j] -> i++
+                ids[i] > other.ids[j] -> j++
+                else -> {
+                    newIds[n] = ids[i]; newKeys[n] = keys[i]
+                    newSets[n] = ConversionsAndPromotion.coerceAToB(sets[i], other.sets[j]).map { a, b ->
+                        a.union(b)
+                    }
+                    i++
+                    j++
+                    n++
+                }
+            }
+        }
+        return trimmed(newIds, newKeys, newSets, n)
     }
-}
\ No newline at end of file
+}
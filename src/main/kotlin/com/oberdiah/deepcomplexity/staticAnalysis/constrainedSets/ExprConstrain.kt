@@ -1,6 +1,9 @@
 package com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets
 
+import com.oberdiah.deepcomplexity.context.VariableKey
 import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.utilities.WeakInterner
 
 /**
  * A pile of constraints is a set of one or more constraints that may be in effect.
@@ -9,6 +12,8 @@ import com.oberdiah.deepcomplexity.evaluation.*
  */
 data class ConstraintsOrPile(val pile: Set<Constraints>) {
     companion object {
+        private val interner = WeakInterner<ConstraintsOrPile>()
+
         fun unconstrained(): ConstraintsOrPile = ConstraintsOrPile(setOf(Constraints.completelyUnconstrained()))
         fun unreachable(): ConstraintsOrPile = ConstraintsOrPile(setOf(Constraints.unreachable()))
     }
@@ -19,6 +24,87 @@ data class ConstraintsOrPile(val pile: Set<Constraints>) {
         }
     }
 
+    // Piles are hashed every time they're part of a cache key, so it's worth remembering.
+    private var hash = 0
+
+    @Volatile
+    private var isCanonical = false
+
+    /**
+     * The [ExprSummary.bloomBitFor] bits of every [VariableKey] in a single-entry pile. Benignly racy like
+     * [hash]; no entry has enough keys to set every bit, so that's free to mean "not worked out yet".
+     */
+    private var variableBloom = -1L
+
+    /**
+     * The last split [projectedOnto] worked out for a canonical pile, and which of [variableBloom]'s bits
+     * it kept.
+     */
+    private class Projection(val keptBits: Long, val split: Pair<ConstraintsOrPile, ConstraintsOrPile>)
+
+    @Volatile
+    private var lastProjection: Projection? = null
+
+    override fun hashCode(): Int {
+        var h = hash
+        if (h == 0) {
+            h = pile.hashCode()
+            if (h == 0) h = 1
+            hash = h
+        }
+        return h
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is ConstraintsOrPile) return false
+        return hashCode() == other.hashCode() && pile == other.pile
+    }
+
+    /**
+     * The canonical instance equal to this one, made up of canonical [Constraints]. Cache keys built from
+     * canonical piles mostly compare by pointer.
+     */
+    fun interned(): ConstraintsOrPile {
+        if (isCanonical) return this
+        val canonical = interner.find(this)
+            ?: interner.intern(ConstraintsOrPile(pile.mapTo(LinkedHashSet()) { it.interned() }))
+        return canonical.also { it.isCanonical = true }
+    }
+
+    /**
+     * Splits a single-entry pile into the constraints an expression with summary bloom [keyBloom] may depend
+     * on, and the constraints on [VariableKey]s it definitely can't. Null if there's nothing to split off,
+     * which is a couple of bit operations to find out. Both halves are canonical.
+     *
+     * Which keys get split off only depends on which of [variableBloom]'s bits [keyBloom] shares, so canonical
+     * piles remember their last split for the next expression that shares the same ones; in practice, usually
+     * a sibling or child of the last.
+     */
+    fun projectedOnto(keyBloom: Long): Pair<ConstraintsOrPile, ConstraintsOrPile>? {
+        val only = pile.singleOrNull() ?: return null
+        if (only.unreachable) return null
+
+        var variables = variableBloom
+        if (variables == -1L) {
+            variables = only.constraints.keys.fold(0L) { acc, key ->
+                if (key is VariableKey<*>) acc or ExprSummary.bloomBitFor(key) else acc
+            }
+            variableBloom = variables
+        }
+        val keptBits = variables and keyBloom
+        if (keptBits == variables) return null
+
+        lastProjection?.let { if (it.keptBits == keptBits) return it.split }
+
+        val (relevant, irrelevant) = only.partition { key ->
+            key !is VariableKey<*> || ExprSummary.bloomBitFor(key) and keptBits != 0L
+        }
+        val split = ConstraintsOrPile(setOf(relevant)).interned() to ConstraintsOrPile(setOf(irrelevant)).interned()
+        if (isCanonical) lastProjection = Projection(keptBits, split)
+        return split
+    }
+
     @Suppress("Unused")
     val unreachable: Boolean
         get() = pile.all { it.unreachable }
@@ -26,20 +112,83 @@ data class ConstraintsOrPile(val pile: Set<Constraints>) {
     fun and(other: ConstraintsOrPile): ConstraintsOrPile {
         val outputConstraints: MutableSet<Constraints> = mutableSetOf()
 
-        require(pile.size < 10 && other.pile.size < 10) {
-            "Combining constraints with size > 10: $pile , $other. This surely can't be efficient."
+        for (lhs in withinLimit().pile) {
+            for (rhs in other.withinLimit().pile) {
+                outputConstraints.add(lhs.and(rhs))
+            }
         }
+        // The product can be up to [Settings.maxPileSize] squared entries long. With more than twice the limit,
+        // normalising would have to get rid of over half of them to avoid being joined anyway, so it isn't
+        // worth the quadratic pass.
+        return ConstraintsOrPile(outputConstraints).normalised(quadraticUpTo = 2 * Settings.maxPileSize).withinLimit()
+    }
 
-        for (lhs in pile) {
-            for (rhs in other.pile) {
-                outputConstraints.add(lhs.and(rhs))
+    /**
+     * Drops entries that add nothing to the pile: unreachable ones, and ones that only let through what
+     * another entry already does. Then folds together entries that only differ on a single key.
+     * The pile lets through exactly what it did before, but smaller piles make every
+     * [Bundle.constrainWith] and cache key that uses them cheaper.
+     *
+     * The subsumption and merging passes are quadratic, so with more than [quadraticUpTo] reachable entries
+     * only the unreachable ones are dropped.
+     */
+    private fun normalised(quadraticUpTo: Int = Int.MAX_VALUE): ConstraintsOrPile {
+        if (pile.size <= 1) return this
+
+        val reachable = pile.filter { !it.unreachable }
+        if (reachable.isEmpty()) return ConstraintsOrPile.unreachable()
+        if (reachable.size > quadraticUpTo) {
+            PileMetrics.tooLargeToNormalise.increment()
+            PileMetrics.unreachableDropped.add((pile.size - reachable.size).toLong())
+            return if (reachable.size == pile.size) this else ConstraintsOrPile(reachable.toSet())
+        }
+
+        val survivors = ArrayList<Constraints>(reachable.size)
+        for ((i, entry) in reachable.withIndex()) {
+            // Of two entries that imply each other, the first is kept.
+            val subsumed = reachable.withIndex().any { (j, other) ->
+                i != j && entry.implies(other) && !(j > i && other.implies(entry))
+            }
+            if (!subsumed) survivors.add(entry)
+        }
+
+        val merged = ArrayList<Constraints>(survivors.size)
+        for (entry in survivors) {
+            val into = merged.indices.firstNotNullOfOrNull { k ->
+                merged[k].mergedWith(entry)?.let { k to it }
+            }
+            if (into == null) {
+                merged.add(entry)
+            } else {
+                merged[into.first] = into.second
             }
         }
-        return ConstraintsOrPile(outputConstraints)
+
+        PileMetrics.normalised.increment()
+        PileMetrics.entriesBefore.add(pile.size.toLong())
+        PileMetrics.entriesAfter.add(merged.size.toLong())
+        PileMetrics.unreachableDropped.add((pile.size - reachable.size).toLong())
+        PileMetrics.subsumed.add((reachable.size - survivors.size).toLong())
+        PileMetrics.merged.add((survivors.size - merged.size).toLong())
+
+        return if (merged.size == pile.size) this else ConstraintsOrPile(merged.toSet())
+    }
+
+    /**
+     * If this pile is longer than [Settings.maxPileSize], joins it into a single entry that's met whenever any
+     * of the originals were; see [Constraints.join].
+     */
+    private fun withinLimit(): ConstraintsOrPile {
+        if (pile.size <= Settings.maxPileSize) {
+            return this
+        }
+
+        WideningMetrics.pilesJoined.increment()
+        return ConstraintsOrPile(setOf(pile.reduce { acc, constraints -> acc.join(constraints) }))
     }
 
     fun or(other: ConstraintsOrPile): ConstraintsOrPile {
-        return ConstraintsOrPile(this.pile + other.pile)
+        return ConstraintsOrPile(this.pile + other.pile).normalised()
     }
 }
 
@@ -85,9 +234,71 @@ object ExprConstrain {
         condition: Expr<Boolean>,
         constraints: ConstraintsOrPile,
         assistant: EvaluatorAssistant
+    ): ConstraintsOrPile = assistant.getOrPutConstraints(condition, constraints) {
+        timed(condition) { constraintsFor(condition, constraints, assistant) }
+    }
+
+    /**
+     * The constraints when [condition] is true and when it's false, in that order.
+     *
+     * For a comparison, both come out of the one evaluation of its two sides. Anything else is just
+     * [getConstraints] on the condition and on its inverse.
+     */
+    fun getConstraintsBothWays(
+        condition: Expr<Boolean>,
+        constraints: ConstraintsOrPile,
+        assistant: EvaluatorAssistant
+    ): Pair<ConstraintsOrPile, ConstraintsOrPile> {
+        val inverse = BooleanInvertExpr.new(condition)
+        // Seen both before, so no need to work out whether the comparison inverts cleanly.
+        assistant.knownConstraintsBothWays(condition, inverse, constraints)?.let { return it }
+
+        if (condition !is ComparisonExpr<*> || !invertsCleanly(condition, constraints)) {
+            return getConstraints(condition, constraints, assistant) to getConstraints(inverse, constraints, assistant)
+        }
+
+        fun <Q : Any> bothWays(me: ComparisonExpr<Q>): Pair<ConstraintsOrPile, ConstraintsOrPile> {
+            val lhsBundleSet = me.lhs.evaluate(constraints, assistant)
+            val rhsBundleSet = me.rhs.evaluate(constraints, assistant)
+
+            return lhsBundleSet.generateConstraintsFrom(rhsBundleSet, me.comp) to
+                    lhsBundleSet.generateConstraintsFrom(rhsBundleSet, me.comp.invert())
+        }
+
+        var falseConstraints: ConstraintsOrPile? = null
+        val trueConstraints = assistant.getOrPutConstraints(condition, constraints) {
+            val (whenTrue, whenFalse) = timed(condition) { bothWays(condition) }
+            falseConstraints = whenFalse
+            whenTrue
+        }
+
+        val whenFalse = falseConstraints?.also { assistant.putConstraints(inverse, constraints, it) }
+            ?: getConstraints(inverse, constraints, assistant)
+        return trueConstraints to whenFalse
+    }
+
+    /**
+     * Whether inverting [comparison] gives back the same comparison with the operator flipped, and so whether
+     * its false constraints can be worked out alongside its true ones. Simplification can turn the inverse
+     * into something else entirely, in which case we stick with whatever that is.
+     */
+    private fun invertsCleanly(comparison: ComparisonExpr<*>, constraints: ConstraintsOrPile): Boolean {
+        val inverse = comparison.inverted(constraints)
+        return inverse is ComparisonExpr<*> &&
+                inverse.lhs === comparison.lhs &&
+                inverse.rhs === comparison.rhs &&
+                inverse.comp == comparison.comp.invert()
+    }
+
+    private inline fun <R> timed(condition: Expr<Boolean>, block: () -> R): R =
+        EvaluationMetrics.time(EvaluationMetrics.Section.GET_CONSTRAINTS, { condition.toString() }, block)
+
+    private fun constraintsFor(
+        condition: Expr<Boolean>,
+        constraints: ConstraintsOrPile,
+        assistant: EvaluatorAssistant
     ): ConstraintsOrPile {
-        val startTime = System.currentTimeMillis()
-        val newConstraints = when (condition) {
+        return when (condition) {
             is BooleanOpExpr -> {
                 when (condition.op) {
                     BooleanOp.OR -> {
@@ -165,8 +376,5 @@ object ExprConstrain {
 
             else -> TODO("Not implemented constraints for $condition")
         }
-        val duration = System.currentTimeMillis() - startTime
-        if (duration > 10) println("Warning: getConstraints took ${duration}ms")
-        return newConstraints
     }
 }
\ No newline at end of file
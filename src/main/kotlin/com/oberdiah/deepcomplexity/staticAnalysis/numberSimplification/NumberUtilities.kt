@@ -31,4 +31,21 @@ object NumberUtilities {
 
         return newRanges
     }
-}
\ No newline at end of file
+
+    /**
+     * Takes sorted, non-overlapping [ranges] and joins neighbours across the smallest gaps until there are
+     * at most [maxRanges] left. The result covers everything [ranges] did, and then some.
+     */
+    fun <T : Number> fillSmallestGaps(ranges: List<NumberRange<T>>, maxRanges: Int): List<NumberRange<T>> {
+        val filled = ranges.toMutableList()
+        while (filled.size > maxRanges) {
+            // Only used to decide which gap to fill, so a double's precision is plenty.
+            val smallest = (0 until filled.size - 1).minBy { i ->
+                filled[i + 1].start.toDouble() - filled[i].end.toDouble()
+            }
+            filled[smallest] = NumberRange.new(filled[smallest].start, filled[smallest + 1].end)
+            filled.removeAt(smallest + 1)
+        }
+        return filled
+    }
+}
@@ -4,6 +4,7 @@ import com.oberdiah.deepcomplexity.evaluation.BinaryNumberOp
 import com.oberdiah.deepcomplexity.evaluation.BinaryNumberOp.*
 import com.oberdiah.deepcomplexity.evaluation.ComparisonOp
 import com.oberdiah.deepcomplexity.evaluation.ComparisonOp.*
+import com.oberdiah.deepcomplexity.evaluation.WideningMetrics
 import com.oberdiah.deepcomplexity.staticAnalysis.BigIntegerIndicator
 import com.oberdiah.deepcomplexity.staticAnalysis.Indicator
 import com.oberdiah.deepcomplexity.staticAnalysis.NumberIndicator
@@ -39,6 +40,23 @@ data class NumberSet<T : Number> private constructor(
         fun <T : Number> newFromRange(range: NumberRange<T>): NumberSet<T> = NumberSet(range.ind, false, listOf(range))
         fun <T : Number> newEmpty(ind: NumberIndicator<T>): NumberSet<T> = NumberSet(ind, false, emptyList())
         fun <T : Number> newFull(ind: NumberIndicator<T>): NumberSet<T> = newFromRange(NumberRange.fullRange(ind))
+
+        /**
+         * Merges [ranges] together, and then if there are still more than [MAX_RANGES] of them, fills in the
+         * smallest gaps between them until there aren't. A few extra values in the set is still a sound answer.
+         */
+        private fun <T : Number> fromRanges(
+            ind: NumberIndicator<T>,
+            divByZero: Boolean,
+            ranges: List<NumberRange<T>>
+        ): NumberSet<T> {
+            var merged = NumberUtilities.mergeAndDeduplicate(ranges)
+            if (merged.size > MAX_RANGES) {
+                WideningMetrics.rangesMerged.add((merged.size - MAX_RANGES).toLong())
+                merged = NumberUtilities.fillSmallestGaps(merged, MAX_RANGES)
+            }
+            return NumberSet(ind, divByZero, merged)
+        }
     }
 
     init {
@@ -70,7 +88,7 @@ data class NumberSet<T : Number> private constructor(
     }
 
     private fun makeNew(ranges: List<NumberRange<T>>, divByZero: Boolean = hasThrownDivideByZero) =
-        NumberSet(ind, divByZero, NumberUtilities.mergeAndDeduplicate(ranges))
+        fromRanges(ind, divByZero, ranges)
 
     /**
      * Returns the full range of this number set (Smallest possible value to largest)
@@ -102,11 +120,7 @@ data class NumberSet<T : Number> private constructor(
             require(newInd.isWholeNum() && ind.isWholeNum()) {
                 "Attempted to cast to a floating point number."
             }
-            return NumberSet(
-                newInd,
-                hasThrownDivideByZero,
-                NumberUtilities.mergeAndDeduplicate(ranges.flatMap { it.castTo(newInd) })
-            )
+            return fromRanges(newInd, hasThrownDivideByZero, ranges.flatMap { it.castTo(newInd) })
         }
 
         @Suppress("UNCHECKED_CAST")
@@ -136,10 +150,6 @@ data class NumberSet<T : Number> private constructor(
             MODULO -> return doModulo(other)
         }
 
-        if (ranges.size > MAX_RANGES || other.ranges.size > MAX_RANGES) {
-            throw RuntimeException("NumberSet has more than $MAX_RANGES ranges, this may be slow.")
-        }
-
         var divByZero = hasThrownDivideByZero || other.hasThrownDivideByZero
         val newList: MutableList<NumberRange<T>> = mutableListOf()
         for (range in ranges) {
@@ -307,7 +317,7 @@ data class NumberSet<T : Number> private constructor(
                 }
             }
 
-        return NumberSet(returnInd, hasThrownDivideByZero, NumberUtilities.mergeAndDeduplicate(newData))
+        return fromRanges(returnInd, hasThrownDivideByZero, newData)
     }
 
     override fun contains(element: T): Boolean = ranges.any { element >= it.start && element <= it.end }
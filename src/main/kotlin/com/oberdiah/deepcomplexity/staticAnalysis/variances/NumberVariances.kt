@@ -4,6 +4,9 @@ import com.oberdiah.deepcomplexity.context.EvaluationKey
 import com.oberdiah.deepcomplexity.evaluation.BinaryNumberOp
 import com.oberdiah.deepcomplexity.evaluation.BinaryNumberOp.*
 import com.oberdiah.deepcomplexity.evaluation.ComparisonOp
+import com.oberdiah.deepcomplexity.evaluation.EvaluationMetrics
+import com.oberdiah.deepcomplexity.evaluation.WideningMetrics
+import com.oberdiah.deepcomplexity.settings.Settings
 import com.oberdiah.deepcomplexity.staticAnalysis.BigIntegerIndicator
 import com.oberdiah.deepcomplexity.staticAnalysis.Indicator
 import com.oberdiah.deepcomplexity.staticAnalysis.NumberIndicator
@@ -56,16 +59,10 @@ class NumberVariances<T : Number> private constructor(
     override val ind: NumberIndicator<T>,
     multipliers: Map<EvaluationKey<*>, NumberSet<BigInteger>> = mapOf()
 ) : Variances<T> {
-    private val multipliers: Map<EvaluationKey<*>, NumberSet<BigInteger>> =
+    private val multipliers: Map<EvaluationKey<*>, NumberSet<BigInteger>> = withinLimit(
         mapOf(EvaluationKey.ConstantKey to BigIntegerIndicator.onlyZeroSet()) +
                 multipliers.filter { !it.value.isZero() }
-
-    init {
-        require(this.multipliers.size < 10) {
-            "Too many multipliers in NumberVariances: ${multipliers.size}. " +
-                    "This isn't a hard limit, but it's questionable from a performance perspective."
-        }
-    }
+    )
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -92,6 +89,32 @@ class NumberVariances<T : Number> private constructor(
 
         fun <T : Number> newFromVariance(ind: NumberIndicator<T>, key: EvaluationKey<*>): NumberVariances<T> =
             NumberVariances(ind, mapOf(key to BigIntegerIndicator.onlyOneSet()))
+
+        /**
+         * Keeps [multipliers] within [Settings.maxMultipliers] by folding the least important keys into the
+         * constant term, as if each could be any value of its type. We lose track of those keys, but never
+         * leave out a value they could have given us.
+         */
+        private fun withinLimit(
+            multipliers: Map<EvaluationKey<*>, NumberSet<BigInteger>>
+        ): Map<EvaluationKey<*>, NumberSet<BigInteger>> {
+            val folding = multipliers.size - Settings.maxMultipliers
+            if (folding <= 0) {
+                return multipliers
+            }
+
+            WideningMetrics.multipliersFolded.add(folding.toLong())
+            val byImportance = multipliers.entries
+                .filter { !it.key.isConstant() }
+                .sortedByDescending { it.key.importance() }
+            val kept = byImportance.take(Settings.maxMultipliers - 1)
+            val folded = byImportance.drop(Settings.maxMultipliers - 1)
+
+            val constant = folded.fold(multipliers.getValue(EvaluationKey.ConstantKey)) { acc, (key, multiplier) ->
+                acc.add(multiplier.multiply(key.ind.newFullSet().castTo(BigIntegerIndicator).into()))
+            }
+            return mapOf(EvaluationKey.ConstantKey to constant) + kept.associate { it.toPair() }
+        }
     }
 
     override fun toDebugString(constraints: Constraints): String {
@@ -134,7 +157,9 @@ class NumberVariances<T : Number> private constructor(
      * all the information it needs alone.
      */
     override fun collapse(constraints: Constraints): NumberSet<T> =
-        collapseWithoutLimits(constraints).castToNumber(ind)
+        EvaluationMetrics.time(EvaluationMetrics.Section.COLLAPSE) {
+            collapseWithoutLimits(constraints).castToNumber(ind)
+        }
 
     private fun collapseWithoutLimits(constraints: Constraints): NumberSet<BigInteger> =
         multipliers.entries.fold(BigIntegerIndicator.onlyZeroSet()) { acc, (key, multiplier) ->
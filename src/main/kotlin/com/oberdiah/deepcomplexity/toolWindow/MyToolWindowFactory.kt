@@ -1,7 +1,13 @@
 package com.oberdiah.deepcomplexity.toolWindow
 
 import com.oberdiah.deepcomplexity.MyBundle
+import com.oberdiah.deepcomplexity.evaluation.ExprPoolMetrics
+import com.oberdiah.deepcomplexity.evaluation.MethodProcessing
+import com.oberdiah.deepcomplexity.evaluation.PileMetrics
+import com.oberdiah.deepcomplexity.evaluation.WideningMetrics
+import com.oberdiah.deepcomplexity.services.EvaluationCacheService
 import com.oberdiah.deepcomplexity.services.MyProjectService
+import com.oberdiah.deepcomplexity.utilities.HotPath
 import com.intellij.openapi.components.service
 import com.intellij.openapi.fileEditor.FileEditorManager
 import com.intellij.openapi.project.Project
@@ -26,10 +32,10 @@ class MyToolWindowFactory : ToolWindowFactory {
 
     class MyToolWindow(val toolWindow: ToolWindow) {
         private val service = toolWindow.project.service<MyProjectService>()
+        private val evaluationService = toolWindow.project.service<EvaluationCacheService>()
+        private val textArea = JBTextArea(MyBundle.message("randomLabel", "?"))
 
         fun getContent() = JBPanel<JBPanel<*>>().apply {
-            val textArea = JBTextArea(MyBundle.message("randomLabel", "?"))
-
             add(textArea)
 
             add(JButton("Build Tree").apply {
@@ -43,6 +49,17 @@ class MyToolWindowFactory : ToolWindowFactory {
                     scanMethod(true)
                 }
             })
+
+            val poolStats = JBTextArea().apply { isEditable = false }
+            add(poolStats)
+
+            add(JButton("Refresh Pool Stats").apply {
+                addActionListener {
+                    poolStats.text = "${ExprPoolMetrics.snapshot()}${evaluationService.cache.snapshot()}" +
+                            "${WideningMetrics.snapshot()}${PileMetrics.snapshot()}" +
+                            if (HotPath.ENABLED) "${HotPath.snapshot()}" else ""
+                }
+            })
         }
 
         private fun scanMethod(evaluateResults: Boolean) {
@@ -58,8 +75,12 @@ class MyToolWindowFactory : ToolWindowFactory {
                 val offset = editor.caretModel.offset
                 val element = psiFile?.findElementAt(offset)
 
-                if (element != null && element.parent is PsiMethod) {
-//                    MethodProcessing.printMethod(element.parent as PsiMethod, evaluateResults)
+                val method = element?.parent as? PsiMethod ?: return
+                val returnValue = MethodProcessing.getMethodContext(method).returnValue?.optimise()
+                textArea.text = when {
+                    returnValue == null -> "No return value"
+                    evaluateResults -> evaluationService.evaluate(returnValue).collapse().toString()
+                    else -> returnValue.toString()
                 }
             }
         }
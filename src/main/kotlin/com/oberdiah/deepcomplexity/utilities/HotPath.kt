@@ -0,0 +1,174 @@
+package com.oberdiah.deepcomplexity.utilities
+
+import com.intellij.openapi.diagnostic.Logger
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Timing for operations on the hot path that we want to keep an eye on, without it costing anything when
+ * we're not looking.
+ *
+ * Turned on with the `HOT_PATH_INSTRUMENTATION=True` environment variable. That's read exactly once, into a
+ * static final field, so when it's off the JIT folds [measure] and [event] down to just their blocks.
+ *
+ * Each timed [Op] gets a histogram of how long it took, in power-of-two nanosecond buckets; the rest are
+ * events, which are just counted. Calls slower than the op's threshold, and every event, are logged to the IDE
+ * log and kept (a bounded number of them) for [drainSlowCalls]; what they were working on is only described
+ * when that happens, so describing can be as expensive as it likes.
+ *
+ * Ops that are also an [com.oberdiah.deepcomplexity.evaluation.EvaluationMetrics.Section] are timed there,
+ * which feeds its measurements in here through [recordMeasured], so that they're only timed once.
+ */
+object HotPath {
+    @JvmField
+    val ENABLED: Boolean = System.getenv("HOT_PATH_INSTRUMENTATION") == "True"
+
+    enum class Op(val label: String, val slowNanos: Long, val isEvent: Boolean = false) {
+        /**
+         * Fed by [com.oberdiah.deepcomplexity.evaluation.EvaluationMetrics.Section.GET_CONSTRAINTS], so only
+         * the outermost of nested calls within an evaluation are seen.
+         */
+        GET_CONSTRAINTS("ExprConstrain.getConstraints", 10_000_000),
+        RESOLVE("PsiReferenceExpression.resolve", 10_000_000),
+
+        /**
+         * Comparing a whole number to a floating point one, which has to go through [java.math.BigDecimal].
+         * Every one of these is logged, as it shouldn't be happening at all.
+         */
+        MIXED_COMPARISON("Mixed whole/floating point comparison", 0, isEvent = true),
+    }
+
+    /**
+     * Bucket `i` holds calls that took less than `2^i` nanoseconds, but at least `2^(i-1)`.
+     */
+    private const val BUCKETS = 65
+    private const val MAX_SLOW_CALLS = 32
+    private const val MAX_DESCRIPTION_LENGTH = 200
+
+    private val log = Logger.getInstance(HotPath::class.java)
+
+    private class Histogram {
+        val buckets = Array(BUCKETS) { LongAdder() }
+        val totalNanos = LongAdder()
+        val slowest = LongAccumulator({ a, b -> maxOf(a, b) }, 0)
+    }
+
+    private val histograms = Op.entries.filter { !it.isEvent }.associateWith { Histogram() }
+    private val events = Op.entries.filter { it.isEvent }.associateWith { LongAdder() }
+    private val slowCalls = ConcurrentLinkedDeque<String>()
+
+    internal inline fun <R> measure(op: Op, describe: () -> String, block: () -> R): R {
+        if (!ENABLED) return block()
+
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            recordMeasured(op, System.nanoTime() - start, describe)
+        }
+    }
+
+    /**
+     * For when [op] has already been timed elsewhere, and took [nanos].
+     */
+    internal inline fun recordMeasured(op: Op, nanos: Long, describe: () -> String) {
+        if (!ENABLED) return
+        if (record(op, nanos)) recordSlowCall("${op.label} took ${"%.3f".format(nanos / 1e6)}ms", describe())
+    }
+
+    /**
+     * Records that [op] happened, for ops where the fact it happened at all is what matters.
+     */
+    internal inline fun event(op: Op, describe: () -> String) {
+        if (!ENABLED) return
+        recordEvent(op)
+        recordSlowCall(op.label, describe())
+    }
+
+    internal fun recordEvent(op: Op) {
+        events.getValue(op).increment()
+    }
+
+    /**
+     * Returns whether the call was slow.
+     */
+    internal fun record(op: Op, nanos: Long): Boolean {
+        val histogram = histograms.getValue(op)
+        histogram.buckets[64 - java.lang.Long.numberOfLeadingZeros(nanos.coerceAtLeast(0))].increment()
+        histogram.totalNanos.add(nanos)
+        histogram.slowest.accumulate(nanos)
+        return nanos >= op.slowNanos
+    }
+
+    internal fun recordSlowCall(what: String, description: String) {
+        val message = "$what: ${description.take(MAX_DESCRIPTION_LENGTH)}"
+        log.info(message)
+
+        slowCalls.addLast(message)
+        while (slowCalls.size > MAX_SLOW_CALLS) {
+            slowCalls.pollFirst()
+        }
+    }
+
+    /**
+     * Hands back, and forgets, the slow calls kept since the last time this was called.
+     */
+    fun drainSlowCalls(): List<String> = generateSequence { slowCalls.pollFirst() }.toList()
+
+    data class OpSnapshot(val buckets: List<Long>, val totalNanos: Long, val slowestNanos: Long) {
+        val calls: Long get() = buckets.sum()
+
+        operator fun minus(earlier: OpSnapshot): OpSnapshot = copy(
+            buckets = buckets.zip(earlier.buckets) { a, b -> a - b },
+            totalNanos = totalNanos - earlier.totalNanos,
+        )
+
+        /**
+         * An upper bound on the [fraction] quantile, to within the factor of two the buckets give us.
+         */
+        fun quantileNanos(fraction: Double): Long {
+            val target = calls * fraction
+            var seen = 0L
+            for ((i, count) in buckets.withIndex()) {
+                seen += count
+                if (seen >= target) return if (i == 0) 0 else minOf((1L shl i) - 1, slowestNanos)
+            }
+            return slowestNanos
+        }
+    }
+
+    data class Snapshot(val ops: Map<Op, OpSnapshot>, val events: Map<Op, Long>) {
+        operator fun minus(earlier: Snapshot): Snapshot = Snapshot(
+            ops.mapValues { (op, now) -> now - earlier.ops.getValue(op) },
+            events.mapValues { (op, now) -> now - earlier.events.getValue(op) },
+        )
+
+        override fun toString(): String = buildString {
+            appendLine("Hot path:")
+            for ((op, stats) in ops) {
+                if (stats.calls == 0L) continue
+                val mean = stats.totalNanos / stats.calls
+                appendLine(
+                    "\t${op.label}: ${stats.calls} calls, ${mean}ns mean, " +
+                            "p50 <${stats.quantileNanos(0.5)}ns, p99 <${stats.quantileNanos(0.99)}ns, " +
+                            "max ${stats.slowestNanos}ns"
+                )
+            }
+            for ((op, count) in events) {
+                if (count > 0) appendLine("\t${op.label}: $count times")
+            }
+        }
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        histograms.mapValues { (_, histogram) ->
+            OpSnapshot(
+                histogram.buckets.map { it.sum() },
+                histogram.totalNanos.sum(),
+                histogram.slowest.get(),
+            )
+        },
+        events.mapValues { (_, count) -> count.sum() },
+    )
+}
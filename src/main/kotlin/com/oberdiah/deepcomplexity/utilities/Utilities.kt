@@ -151,15 +151,10 @@ object Utilities {
 
     fun PsiElement.resolveIfNeeded(): PsiElement {
         if (this is PsiReferenceExpression) {
-            val startTime = System.currentTimeMillis()
-            val resolved = this.resolve() ?: TODO(
+            val resolved = HotPath.measure(HotPath.Op.RESOLVE, { element.text }) { this.resolve() }
+            return resolved ?: TODO(
                 "Variable couldn't be resolved (${element.text})"
             )
-            val duration = System.currentTimeMillis() - startTime
-            if (duration > 10) {
-                println("Slow resolution warning! ${this.element.text} took ${duration}ms")
-            }
-            return resolved
         }
         return this
     }
@@ -295,10 +290,10 @@ object Utilities {
         }
 
         return if (thisIsWhole) {
-            println("Slow comparison warning! $this $other")
+            HotPath.event(HotPath.Op.MIXED_COMPARISON) { "$this $other" }
             BigDecimal.valueOf(this.toLong()).compareTo(BigDecimal.valueOf(other.toDouble()))
         } else if (otherIsWhole) {
-            println("Slow comparison warning! $this $other")
+            HotPath.event(HotPath.Op.MIXED_COMPARISON) { "$this $other" }
             BigDecimal.valueOf(this.toDouble()).compareTo(BigDecimal.valueOf(other.toLong()))
         } else {
             this.toDouble().compareTo(other.toDouble())
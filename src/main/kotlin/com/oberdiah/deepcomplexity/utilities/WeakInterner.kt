@@ -0,0 +1,92 @@
+package com.oberdiah.deepcomplexity.utilities
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Hands out one canonical instance per distinct (by [equals]) value, holding on to them only weakly, so a
+ * canonical instance lives exactly as long as something else is using it.
+ *
+ * Each canonical instance is also given a small id, unique among those alive at the same time, for anything
+ * that wants to order or index by it. It's only stable for as long as the instance is alive; once it's been
+ * collected its id is handed out again, so ids stay small and never run out.
+ *
+ * Safe to use from any thread. Values should be immutable and should cache their hash, as it's asked for on
+ * every lookup.
+ */
+class WeakInterner<T : Any> {
+    data class Interned<T : Any>(val value: T, val id: Int)
+
+    private class Ref<T : Any>(value: T, queue: ReferenceQueue<T>, val id: Int) : WeakReference<T>(value, queue) {
+        private val hash = value.hashCode()
+
+        override fun hashCode(): Int = hash
+
+        // Only ever equal to itself once collected, which is what lets [drain] remove it.
+        override fun equals(other: Any?): Boolean {
+            if (this === other) return true
+            if (other !is Ref<*>) return false
+            val value = get() ?: return false
+            return value == other.get()
+        }
+    }
+
+    /**
+     * What we look up with, so that a lookup doesn't need a [WeakReference].
+     * [ConcurrentHashMap] always compares from the lookup's side, so this doesn't need to be symmetric.
+     */
+    private class Lookup<T : Any>(val value: T) {
+        override fun hashCode(): Int = value.hashCode()
+        override fun equals(other: Any?): Boolean = other is Ref<*> && value == other.get()
+    }
+
+    private val table = ConcurrentHashMap<Any, Ref<T>>()
+    private val queue = ReferenceQueue<T>()
+    private val nextId = AtomicInteger()
+
+    /**
+     * Ids of collected entries, ready to be reused. A [Ref] is enqueued at most once, so no id comes back
+     * twice. One that never made it into the table may be collected itself before it's enqueued, in which
+     * case its id just isn't reused.
+     */
+    private val freeIds = ConcurrentLinkedQueue<Int>()
+
+    /**
+     * The number of entries, including any collected ones that haven't been swept yet.
+     */
+    val size: Int get() = table.size
+
+    /**
+     * The canonical instance equal to [value], if there is one.
+     */
+    fun find(value: T): T? = table[Lookup(value)]?.get()
+
+    fun intern(value: T): T = internWithId(value).value
+
+    fun internWithId(value: T): Interned<T> {
+        drain()
+
+        table[Lookup(value)]?.let { existing ->
+            existing.get()?.let { return Interned(it, existing.id) }
+        }
+
+        val ref = Ref(value, queue, freeIds.poll() ?: nextId.getAndIncrement())
+        while (true) {
+            val existing = table.putIfAbsent(ref, ref) ?: return Interned(value, ref.id)
+            // Someone else got there first, so theirs is canonical, unless it's been collected since.
+            existing.get()?.let { return Interned(it, existing.id) }
+            table.remove(existing, existing)
+        }
+    }
+
+    private fun drain() {
+        while (true) {
+            val dead = queue.poll() as Ref<*>? ?: return
+            table.remove(dead, dead)
+            freeIds.add(dead.id)
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.oberdiah.deepcomplexity
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiTypes
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase5
+import com.oberdiah.deepcomplexity.context.ParameterKey
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ExprConstrain
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ * Evaluating under only the constraints an expression can depend on must give the same bundle as evaluating
+ * under all of them. Needs real parameters, as only variable keys are ever projected away.
+ */
+class ConstraintProjectionTest : LightJavaCodeInsightFixtureTestCase5() {
+    private fun parameter(name: String): ParameterKey<*> =
+        ParameterKey.new(JavaPsiFacade.getElementFactory(fixture.project).createParameter(name, PsiTypes.intType()))
+
+    private fun variable(key: ParameterKey<*>): Expr<Int> = VariableExpr.new(key, IntIndicator)
+
+    private fun const(i: Int) = ConstExpr.new(i, IntIndicator)
+
+    private fun <R> withProjection(enabled: Boolean, block: () -> R): R {
+        val previous = Settings.projectConstraints
+        try {
+            Settings.projectConstraints = enabled
+            return block()
+        } finally {
+            Settings.projectConstraints = previous
+        }
+    }
+
+    @Test
+    fun projectionMatchesEvaluatingUnderEverything() {
+        ApplicationManager.getApplication().runReadAction<Unit> { projectionMatchesEvaluatingUnderEverythingInner() }
+    }
+
+    private fun projectionMatchesEvaluatingUnderEverythingInner() {
+        val x = variable(parameter("x"))
+        // `if (x < 5) x else x + 1`
+        val root = IfExpr.newRaw(
+            x,
+            ArithmeticExpr.new(x, const(1), BinaryNumberOp.ADDITION),
+            ComparisonExpr.newRaw(x, const(5), ComparisonOp.LESS_THAN)
+        )
+        // Key summaries are only a bloom filter, so pick a `y` that can't be mistaken for `x`.
+        val y = variable((0 until 64).asSequence().map { parameter("y$it") }.first { !root.summary.mayReference(it) })
+
+        fun yConstraints(op: ComparisonOp) = ExprConstrain.getConstraints(
+            ComparisonExpr.newRaw(y, const(3), op),
+            ConstraintsOrPile.unconstrained(),
+            EvaluatorAssistant.createInitial()
+        )
+
+        val yLow = yConstraints(ComparisonOp.LESS_THAN)
+        val yHigh = yConstraints(ComparisonOp.GREATER_THAN)
+
+        for (constraints in listOf(yLow, yHigh)) {
+            val unprojected = withProjection(false) {
+                root.evaluate(constraints, EvaluatorAssistant.createInitial())
+            }
+            val projected = withProjection(true) {
+                root.evaluate(constraints, EvaluatorAssistant.createInitial())
+            }
+            assertEquals(unprojected, projected)
+        }
+
+        // And having projected `y` away, the second evaluation should find the first's work.
+        withProjection(true) {
+            val assistant = EvaluatorAssistant.createInitial()
+            root.evaluate(yLow, assistant)
+            val before = assistant.metrics.snapshot()
+            root.evaluate(yHigh, assistant)
+            val after = assistant.metrics.snapshot()
+            assertTrue(after.hits > before.hits, "Nothing was shared:\n$after")
+        }
+
+        // Canonical piles hand back the same split to everything that splits them the same way.
+        val canonical = yLow.interned()
+        val split = canonical.projectedOnto(root.summary.keyBloom)
+        assertNotNull(split)
+        assertSame(split, canonical.projectedOnto(x.summary.keyBloom))
+        assertNull(canonical.projectedOnto(y.summary.keyBloom))
+    }
+}
@@ -0,0 +1,126 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.context.EvaluationKey
+import com.oberdiah.deepcomplexity.context.LoopKey
+import com.oberdiah.deepcomplexity.context.ReturnKey
+import com.oberdiah.deepcomplexity.evaluation.ConstExpr
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Constraints
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class ConstraintsTest {
+    private fun key(i: Int) = EvaluationKey.ExpressionKey(ConstExpr.new(i, IntIndicator))
+    private fun only(i: Int) = IntIndicator.newConstantSet(i)
+
+    private val unconstrained = Constraints.completelyUnconstrained()
+
+    /**
+     * Constrains each key to exactly its value.
+     */
+    private fun entry(vararg keysToValues: Pair<Int, Int>) =
+        keysToValues.fold(unconstrained) { acc, (k, v) -> acc.withConstraint(key(k), only(v)) }
+
+    /**
+     * A single-entry pile, see [entry].
+     */
+    private fun pileOf(vararg keysToValues: Pair<Int, Int>) = ConstraintsOrPile(setOf(entry(*keysToValues)))
+
+    @Test
+    fun andDoesNotDependOnOrder() {
+        val a = unconstrained.withConstraint(key(1), only(1)).withConstraint(key(2), only(2))
+        val b = unconstrained.withConstraint(key(2), only(2)).withConstraint(key(1), only(1))
+
+        assertEquals(a, b)
+        assertEquals(a.hashCode(), b.hashCode())
+        assertEquals(mapOf(key(1) to only(1), key(2) to only(2)), a.constraints)
+    }
+
+    @Test
+    fun andIntersectsSharedKeys() {
+        val narrowed = unconstrained
+            .withConstraint(key(1), IntIndicator.newFullSet())
+            .and(unconstrained.withConstraint(key(1), only(5)))
+        assertEquals(only(5), narrowed.getConstraint(key(1)))
+        assertFalse(narrowed.unreachable)
+
+        val contradiction = narrowed.and(unconstrained.withConstraint(key(1), only(6)))
+        assertTrue(contradiction.unreachable)
+    }
+
+    @Test
+    fun joinKeepsOnlySharedKeys() {
+        val a = unconstrained.withConstraint(key(1), only(1)).withConstraint(key(2), only(2))
+        val b = unconstrained.withConstraint(key(1), only(3))
+
+        val joined = a.join(b)
+        assertEquals(setOf(key(1)), joined.constraints.keys)
+        assertEquals(only(1).union(only(3)), joined.getConstraint(key(1)))
+    }
+
+    @Test
+    fun internedPilesAreShared() {
+        fun pile() = ConstraintsOrPile(setOf(unconstrained.withConstraint(key(1), only(1))))
+
+        val first = pile().interned()
+        val second = pile().interned()
+        assertSame(first, second)
+        assertSame(first.pile.single(), second.pile.single())
+    }
+
+    @Test
+    fun orDropsSubsumedEntries() {
+        val narrow = pileOf(1 to 1, 2 to 2)
+        val wide = pileOf(1 to 1)
+
+        assertEquals(wide, narrow.or(wide))
+        assertEquals(wide, wide.or(ConstraintsOrPile.unreachable()))
+    }
+
+    @Test
+    fun orMergesEntriesDifferingInOneKey() {
+        val merged = pileOf(1 to 1, 2 to 2).or(pileOf(1 to 3, 2 to 2)).pile.single()
+        assertEquals(only(1).union(only(3)), merged.getConstraint(key(1)))
+        assertEquals(only(2), merged.getConstraint(key(2)))
+    }
+
+    @Test
+    fun andNormalisesItsResult() {
+        // Both entries with key 2 are subsumed by the ones without, and what's left merges into one.
+        val lhs = ConstraintsOrPile(setOf(entry(1 to 1), entry(1 to 2)))
+        val rhs = ConstraintsOrPile(setOf(entry(2 to 2), unconstrained))
+        val anded = lhs.and(rhs).pile.single()
+        assertEquals(setOf(key(1)), anded.constraints.keys)
+        assertEquals(only(1).union(only(2)), anded.getConstraint(key(1)))
+
+        // The contradictory product is dropped.
+        assertEquals(pileOf(1 to 1), lhs.and(pileOf(1 to 1)))
+    }
+
+    @Test
+    fun tooManyKeysDropsTheLeastImportant() {
+        // Loop keys matter less than expression keys, so this is the one to go.
+        val loopKey = LoopKey.new(ReturnKey(IntIndicator))
+        val start = unconstrained.withConstraint(loopKey, only(0))
+        val constrained = (1..Settings.maxConstraintKeys).fold(start) { acc, i -> acc.withConstraint(key(i), only(i)) }
+        assertEquals((1..Settings.maxConstraintKeys).map { key(it) }.toSet(), constrained.constraints.keys)
+        assertFalse(constrained.unreachable)
+    }
+
+    @Test
+    fun overlongPilesAreJoined() {
+        // No two entries here subsume or merge with each other, so normalising can't shorten it.
+        val values = 0..Settings.maxPileSize
+        val pile = ConstraintsOrPile(values.map { entry(1 to it, 2 to it) }.toSet())
+
+        val joined = pile.and(ConstraintsOrPile.unconstrained()).pile.single()
+        val everyValue = values.map { only(it) }.reduce { acc, set -> acc.union(set) }
+        assertEquals(everyValue, joined.getConstraint(key(1)))
+        assertEquals(everyValue, joined.getConstraint(key(2)))
+    }
+}
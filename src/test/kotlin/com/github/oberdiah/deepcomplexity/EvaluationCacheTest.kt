@@ -0,0 +1,75 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.ArithmeticExpr
+import com.oberdiah.deepcomplexity.evaluation.BinaryNumberOp
+import com.oberdiah.deepcomplexity.evaluation.ConstExpr
+import com.oberdiah.deepcomplexity.evaluation.EvaluationCache
+import com.oberdiah.deepcomplexity.evaluation.EvaluatorAssistant
+import com.oberdiah.deepcomplexity.evaluation.ExprEvaluate.CacheKey
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+
+class EvaluationCacheTest {
+    private fun keyFor(i: Int) = CacheKey(ConstExpr.new(i, IntIndicator), ConstraintsOrPile.unconstrained())
+
+    /**
+     * Every bundle here has a single variance, so weighs one; the cache should hold exactly three of them
+     * and evict whichever was touched least recently.
+     */
+    @Test
+    fun evictsLeastRecentlyUsedOnceOverWeight() {
+        val cache = EvaluationCache(maxWeight = 3)
+        for (i in 0 until 3) {
+            cache.put(keyFor(i), Bundle.unconstrainedConstant(i))
+        }
+
+        // Touch 0, so 1 becomes the least recently used.
+        assertNotNull(cache.get(keyFor(0)))
+        cache.put(keyFor(3), Bundle.unconstrainedConstant(3))
+
+        assertNull(cache.get(keyFor(1)))
+        assertNotNull(cache.get(keyFor(0)))
+        assertNotNull(cache.get(keyFor(2)))
+        assertNotNull(cache.get(keyFor(3)))
+
+        val snapshot = cache.snapshot()
+        assertEquals(3, snapshot.size)
+        assertEquals(3, snapshot.weight)
+        assertEquals(1, snapshot.evictions)
+        assertEquals(4, snapshot.hits)
+        assertEquals(1, snapshot.misses)
+    }
+
+    /**
+     * A second evaluation of the same expression, sharing the first one's cache, should get the whole thing
+     * from it without evaluating anything.
+     */
+    @Test
+    fun secondEvaluationHitsSharedCache() {
+        val expr = ArithmeticExpr.new(
+            ArithmeticExpr.new(ConstExpr.new(1, IntIndicator), ConstExpr.new(2, IntIndicator), BinaryNumberOp.ADDITION),
+            ConstExpr.new(3, IntIndicator),
+            BinaryNumberOp.MULTIPLICATION
+        )
+        val cache = EvaluationCache(maxWeight = 100)
+
+        fun evaluate() = expr.evaluateWithMetrics(
+            ConstraintsOrPile.unconstrained(),
+            EvaluatorAssistant.createInitial(sharedCache = cache)
+        )
+
+        val (first, firstMetrics) = evaluate()
+        assertEquals(0L, firstMetrics.sharedHits)
+
+        val (second, secondMetrics) = evaluate()
+        assertEquals(1L, secondMetrics.sharedHits)
+        assertEquals(0L, secondMetrics.evaluated)
+        assertEquals(first, second)
+        assertEquals(1L, cache.snapshot().hits)
+    }
+}
@@ -0,0 +1,56 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ExprConstrain
+import com.oberdiah.deepcomplexity.utilities.HotPath
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+
+class ExprConstrainTest {
+    private val x = TestUtilities.intVariable
+
+    @Test
+    fun bothWaysMatchesSeparateCalls() {
+        val condition = ComparisonExpr.newRaw(x, ConstExpr.new(5, IntIndicator), ComparisonOp.LESS_THAN)
+        val unconstrained = ConstraintsOrPile.unconstrained()
+
+        val separately = EvaluatorAssistant.createInitial()
+        val whenTrue = ExprConstrain.getConstraints(condition, unconstrained, separately)
+        val whenFalse = ExprConstrain.getConstraints(BooleanInvertExpr.new(condition), unconstrained, separately)
+        assertNotEquals(whenTrue, whenFalse)
+
+        val together = EvaluatorAssistant.createInitial()
+        assertEquals(whenTrue to whenFalse, ExprConstrain.getConstraintsBothWays(condition, unconstrained, together))
+
+        // The second time round, both sides come straight out of the memo.
+        val before = together.metrics.snapshot()
+        assertEquals(whenTrue to whenFalse, ExprConstrain.getConstraintsBothWays(condition, unconstrained, together))
+        val after = together.metrics.snapshot()
+        assertEquals(2L, after.constraintHits - before.constraintHits)
+        assertEquals(2L, after.constraintLookups - before.constraintLookups)
+    }
+
+    /**
+     * Evaluations that don't record metrics of their own, like the IDE's, still need to show up in the
+     * hot path histograms. The build turns those on for tests.
+     */
+    @Test
+    fun plainEvaluationFeedsTheHotPath() {
+        assumeTrue(HotPath.ENABLED, "HOT_PATH_INSTRUMENTATION is off")
+
+        val condition = ComparisonExpr.newRaw(x, ConstExpr.new(3, IntIndicator), ComparisonOp.LESS_THAN)
+        val expr = IfExpr.newRaw(x, ConstExpr.new(3, IntIndicator), condition)
+
+        val before = HotPath.snapshot()
+        expr.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial())
+        val after = HotPath.snapshot() - before
+        assertTrue(after.ops.getValue(HotPath.Op.GET_CONSTRAINTS).calls > 0, "Nothing recorded:\n$after")
+        assertNull(EvaluationMetrics.current.get(), "Left its recording behind")
+    }
+}
@@ -0,0 +1,161 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import java.lang.management.ManagementFactory
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ExprPoolTest {
+    companion object {
+        const val THREADS = 8
+        const val STRUCTURES_PER_THREAD = 5_000
+        const val BENCHMARK_ITERATIONS = 200_000
+
+        /**
+         * Somewhere to put benchmark results so the JIT can't optimise the allocations away.
+         */
+        @Volatile
+        var sink: Any? = null
+    }
+
+    /**
+     * Every thread builds the exact same set of structures at the same time. If interning is correct, every
+     * thread gets handed back the same canonical instance for each structure, and no intern id is ever
+     * given to more than one live instance.
+     */
+    @Test
+    fun concurrentInterningHandsOutOneInstancePerStructure() {
+        val executor = Executors.newFixedThreadPool(THREADS)
+        val startLine = CountDownLatch(1)
+
+        val futures = (0 until THREADS).map { threadIdx ->
+            executor.submit<List<Expr<*>>> {
+                startLine.await()
+                (0 until STRUCTURES_PER_THREAD).map { i ->
+                    // Vary the order threads build things in so they collide on different entries.
+                    buildStructure(if (threadIdx % 2 == 0) i else STRUCTURES_PER_THREAD - 1 - i)
+                }.let { if (threadIdx % 2 == 0) it else it.reversed() }
+            }
+        }
+
+        startLine.countDown()
+        val results = futures.map { it.get(2, TimeUnit.MINUTES) }
+        executor.shutdown()
+
+        val reference = results[0]
+        for (result in results) {
+            for ((expected, actual) in reference.zip(result)) {
+                assertSame(expected, actual, "Two different instances were handed out for $expected")
+            }
+        }
+
+        val byId = HashMap<Long, Expr<*>>()
+        for (expr in results.flatten()) {
+            val existing = byId.putIfAbsent(expr.transientInternIdDoNotUse, expr)
+            if (existing != null) {
+                assertSame(existing, expr, "Intern id ${expr.transientInternIdDoNotUse} was handed out twice")
+            }
+        }
+
+        val distinct = Collections.newSetFromMap(IdentityHashMap<Expr<*>, Boolean>())
+        distinct.addAll(reference)
+        assertEquals(distinct.size, byId.size)
+    }
+
+    private fun buildStructure(i: Int): Expr<*> {
+        val a = ConstExpr.new(i % 97, IntIndicator)
+        val b = ConstExpr.new(i % 89, IntIndicator)
+        val sum = ArithmeticExpr.new(a, b, BinaryNumberOp.ADDITION)
+        val product = ArithmeticExpr.new(sum, ConstExpr.new(i, IntIndicator), BinaryNumberOp.MULTIPLICATION)
+        return ComparisonExpr.newRaw(product, sum, ComparisonOp.LESS_THAN)
+    }
+
+    /**
+     * Two sessions build the same structure independently. The first promotes only part of it, so when the
+     * second promotes the whole thing its parent has to be rebuilt on top of the first session's child.
+     */
+    @Test
+    fun promotionRebuildsParentsAgainstWinningChildren() {
+        fun sum() = ArithmeticExpr.new(
+            ConstExpr.new(-7001, IntIndicator),
+            ConstExpr.new(-7002, IntIndicator),
+            BinaryNumberOp.ADDITION
+        )
+
+        fun product() = ArithmeticExpr.new(sum(), ConstExpr.new(-7003, IntIndicator), BinaryNumberOp.MULTIPLICATION)
+
+        val first = ExprPool.Session()
+        val second = ExprPool.Session()
+        try {
+            val firstSum = ExprPool.joinSession(first) { sum() }
+            val secondProduct = ExprPool.joinSession(second) { product() }
+            assertNotSame(firstSum, secondProduct.lhs)
+
+            assertSame(firstSum, first.promote(listOf(firstSum)).single())
+
+            val promoted = second.promote(listOf(secondProduct)).single()
+            assertNotSame(secondProduct, promoted)
+            assertSame(firstSum, (promoted as ArithmeticExpr<*>).lhs)
+            assertSame(promoted, product())
+        } finally {
+            first.close()
+            second.close()
+        }
+    }
+
+    /**
+     * Factories probe the pool before constructing anything, so a hit shouldn't allocate at all. Anything
+     * under a single object header is measurement noise.
+     *
+     * For comparison, the bytes per create the old path spent before even looking in the pool are reported
+     * alongside: building `Key(kind, List<Any?>)` from `parts() + ind` and the list of normalised child ids.
+     * That path no longer exists, so [legacyKey] rebuilds just that part of it.
+     */
+    @Test
+    fun allocationPerCreate(reporter: TestReporter) {
+        val lhs = ConstExpr.new(3, IntIndicator)
+        val rhs = ConstExpr.new(4, IntIndicator)
+        val expr = ArithmeticExpr.new(lhs, rhs, BinaryNumberOp.ADDITION)
+
+        val hitBytes = bytesPerOperation { ArithmeticExpr.new(lhs, rhs, BinaryNumberOp.ADDITION) }
+        val legacyKeyBytes = bytesPerOperation { legacyKey(expr) }
+        reporter.publishEntry(
+            mapOf(
+                "bytesPerCreateHit" to "%.1f".format(hitBytes),
+                "bytesPerCreateLegacyKey" to "%.1f".format(legacyKeyBytes),
+            )
+        )
+
+        assertTrue(hitBytes < 8, "A pool hit allocated $hitBytes bytes")
+    }
+
+    private fun bytesPerOperation(operation: () -> Any): Double {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+
+        // Warm up so we're measuring the JIT-compiled path.
+        repeat(BENCHMARK_ITERATIONS) { sink = operation() }
+
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        repeat(BENCHMARK_ITERATIONS) { sink = operation() }
+        val after = threadBean.getThreadAllocatedBytes(threadId)
+
+        return (after - before).toDouble() / BENCHMARK_ITERATIONS
+    }
+
+    private data class LegacyKey(val kind: Class<*>, val parts: List<Any?>)
+
+    private fun legacyKey(expr: ArithmeticExpr<*>): Any = LegacyKey(
+        expr.javaClass,
+        (listOf(expr.lhs, expr.rhs, expr.op) + expr.ind).map { if (it is Expr<*>) it.transientInternIdDoNotUse else it }
+    )
+}
@@ -0,0 +1,106 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class ExprTreeRebuilderTest {
+    companion object {
+        const val DEPTH = 100_000
+
+        /**
+         * Far too small to recurse 100k levels deep, so any recursion left in the rebuilder will blow it.
+         */
+        const val SMALL_STACK_BYTES = 256L * 1024
+    }
+
+    /**
+     * A left-leaning chain of additions, the shape a long polyadic expression ends up as.
+     */
+    @Test
+    fun rewritesVeryDeepChainWithoutRecursing() {
+        val one = ConstExpr.new(1, IntIndicator)
+        val two = ConstExpr.new(2, IntIndicator)
+        val leaf = ConstExpr.new(-1, IntIndicator)
+
+        var failure: Throwable? = null
+        val thread = Thread(null, {
+            try {
+                var chain: Expr<Int> = leaf
+                repeat(DEPTH) {
+                    chain = ArithmeticExpr.new(chain, one, BinaryNumberOp.ADDITION)
+                }
+
+                val rewritten = chain.rewriteTypeInTreeSameType<ConstExpr<*>> {
+                    if (it == one) two else it
+                }
+
+                var depth = 0
+                var current: Expr<*> = rewritten
+                while (current is ArithmeticExpr<*>) {
+                    assertSame(two, current.rhs)
+                    current = current.lhs
+                    depth++
+                }
+                assertEquals(DEPTH, depth)
+                assertSame(leaf, current)
+            } catch (e: Throwable) {
+                failure = e
+            }
+        }, "small-stack-rewrite", SMALL_STACK_BYTES)
+
+        thread.start()
+        thread.join()
+        assertNull(failure, "Rewriting failed: $failure")
+    }
+
+    /**
+     * A wide, shared DAG rewritten once sequentially and once in parallel must come back as the exact
+     * same canonical instance, and the parallel run must actually have split its levels up.
+     */
+    @Test
+    fun parallelRewriteMatchesSequential() {
+        // Bands of 1000 nodes where most nodes are used by two parents, so it's properly shared, and each
+        // level is wide enough to be split into several tasks. The last band is then summed up pairwise.
+        var layer: List<Expr<Int>> = (0 until 1000).map { ConstExpr.new(it, IntIndicator) }
+        repeat(20) {
+            val previous = layer
+            layer = previous.indices.map { i ->
+                ArithmeticExpr.new(previous[i], previous[(i + 1) % previous.size], BinaryNumberOp.ADDITION)
+            }
+        }
+        while (layer.size > 1) {
+            layer = layer.chunked(2).map { it.reduce { a, b -> ArithmeticExpr.new(a, b, BinaryNumberOp.ADDITION) } }
+        }
+        val root = layer.single()
+
+        fun rewrite() = root.rewriteTypeInTreeSameType<ConstExpr<*>> {
+            ConstExpr.new((it.value as Int) + 1, IntIndicator)
+        }
+
+        val previousEnabled = Settings.parallelRewrites
+        val previousThreshold = Settings.parallelRewriteThreshold
+        try {
+            Settings.parallelRewrites = false
+            val sequential = rewrite()
+
+            Settings.parallelRewrites = true
+            Settings.parallelRewriteThreshold = 100
+            val before = ExprPoolMetrics.snapshot()
+            val parallel = rewrite()
+            val metrics = ExprPoolMetrics.snapshot() - before
+
+            assertSame(sequential, parallel)
+            assertEquals(1L, metrics.parallelRewrites)
+            assertTrue(metrics.parallelRewriteForks > 0, "No level was split up")
+        } finally {
+            Settings.parallelRewrites = previousEnabled
+            Settings.parallelRewriteThreshold = previousThreshold
+        }
+    }
+}
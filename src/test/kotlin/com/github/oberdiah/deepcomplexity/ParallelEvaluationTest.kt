@@ -0,0 +1,113 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ExprConstrain
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class ParallelEvaluationTest {
+    private val x = TestUtilities.intVariable
+
+    private fun xLessThan(k: Int) = ComparisonExpr.newRaw(x, ConstExpr.new(k, IntIndicator), ComparisonOp.LESS_THAN)
+
+    /**
+     * `if (x < 8) 8 + offset else if (x < 7) 7 + offset else ... else offset`, so every branch is reached
+     * under a different set of constraints on `x`.
+     */
+    private fun ladder(offset: Int): Expr<Int> =
+        (1..LADDER_HEIGHT).fold<Int, Expr<Int>>(ConstExpr.new(offset, IntIndicator)) { acc, k ->
+            IfExpr.newRaw(ConstExpr.new(k + offset, IntIndicator), acc, xLessThan(k))
+        }
+
+    /**
+     * Runs [block] with forking at every opportunity.
+     */
+    private fun <R> forkingEverywhere(block: () -> R): R = withParallelEvaluation(true, block)
+
+    /**
+     * Runs [block] with no forking at all.
+     */
+    private fun <R> sequentially(block: () -> R): R = withParallelEvaluation(false, block)
+
+    private fun <R> withParallelEvaluation(enabled: Boolean, block: () -> R): R {
+        val previousEnabled = Settings.parallelEvaluation
+        val previousThreshold = Settings.parallelEvaluationThreshold
+        try {
+            Settings.parallelEvaluation = enabled
+            Settings.parallelEvaluationThreshold = 1
+            return block()
+        } finally {
+            Settings.parallelEvaluation = previousEnabled
+            Settings.parallelEvaluationThreshold = previousThreshold
+        }
+    }
+
+    companion object {
+        private const val LADDER_HEIGHT = 8
+    }
+
+    /**
+     * A shared DAG evaluated with forking at every opportunity must come out the same as evaluating it in order.
+     */
+    @Test
+    fun parallelEvaluationMatchesSequential() {
+        var layer: List<Expr<Int>> = (0 until 30).map { ConstExpr.new(it, IntIndicator) }
+        while (layer.size > 1) {
+            val previous = layer
+            layer = (0 until previous.size - 1).map { i ->
+                ArithmeticExpr.new(previous[i], previous[i + 1], BinaryNumberOp.ADDITION)
+            }
+        }
+        val root = layer.single()
+
+        fun evaluate() = root.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial())
+
+        assertEquals(sequentially { evaluate() }, forkingEverywhere { evaluate() })
+    }
+
+    @Test
+    fun forkedIfBranchesMatchSequential() {
+        val root = ladder(0)
+        val unconstrained = ConstraintsOrPile.unconstrained()
+
+        val sequential = sequentially { root.evaluate(unconstrained, EvaluatorAssistant.createInitial()) }
+        val parallel = forkingEverywhere { root.evaluateWithMetrics(unconstrained, EvaluatorAssistant.createInitial()) }
+        assertEquals(sequential, parallel.bundle)
+        assertTrue(parallel.metrics.forks > 0, "Nothing was forked:\n${parallel.metrics}")
+        assertTrue(parallel.metrics.constraintLookups > 0)
+    }
+
+    /**
+     * Forked tasks have to see what was worked out before they were forked.
+     */
+    @Test
+    fun forkedTasksShareTheConstraintMemo() = forkingEverywhere {
+        val unconstrained = ConstraintsOrPile.unconstrained()
+        val assistant = EvaluatorAssistant.createInitial()
+        // Both ladders start with this condition, so whichever task gets to it should find it already known.
+        ExprConstrain.getConstraintsBothWays(xLessThan(LADDER_HEIGHT), unconstrained, assistant.enteredCondition())
+
+        val before = assistant.metrics.snapshot()
+        ArithmeticExpr.new(ladder(0), ladder(100), BinaryNumberOp.ADDITION).evaluate(unconstrained, assistant)
+        val after = assistant.metrics.snapshot()
+
+        assertTrue(after.forks > 0, "Nothing was forked:\n$after")
+        assertTrue(after.constraintHits - before.constraintHits >= 4, "Top condition missed:\n$after")
+    }
+
+    @Test
+    fun forkedTasksShareTheBudget() = forkingEverywhere {
+        val budget = AnalysisBudget(maxMillis = 0, maxNodes = 10, maxBundleWidth = Settings.maxBundleWidth)
+        val root = ArithmeticExpr.new(ladder(0), ladder(100), BinaryNumberOp.ADDITION)
+        val evaluation =
+            root.evaluateWithMetrics(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial(budget = budget))
+
+        assertTrue(budget.isExhausted)
+        assertTrue(evaluation.metrics.forks > 0, "Nothing was forked:\n${evaluation.metrics}")
+        assertTrue(evaluation.metrics.evaluated <= 10, "Went over budget:\n${evaluation.metrics}")
+    }
+}
@@ -0,0 +1,30 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+
+class PathCountsTest {
+    /**
+     * Each level adds its previous level to itself, so the DAG is tiny but the expanded tree doubles in size
+     * every level, which quickly takes it well past what a long can hold.
+     */
+    @Test
+    fun countsPastLongOverflow() {
+        val levels = 100
+        val leaf = ConstExpr.new(7, IntIndicator)
+        var root: Expr<Int> = leaf
+        repeat(levels) {
+            root = ArithmeticExpr.new(root, root, BinaryNumberOp.ADDITION)
+        }
+
+        val paths = PathCounts.of(root)
+
+        assertEquals(levels + 1, paths.ordering.size)
+        assertEquals(BigInteger.TWO.pow(levels + 1) - BigInteger.ONE, paths.treeSize)
+        assertEquals(BigInteger.TWO.pow(levels), paths.pathsTo(leaf))
+        assertEquals(paths.treeSize, root.size)
+    }
+}
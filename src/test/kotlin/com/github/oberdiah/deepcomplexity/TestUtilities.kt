@@ -1,12 +1,23 @@
 package com.oberdiah.deepcomplexity
 
+import com.oberdiah.deepcomplexity.context.ReturnKey
+import com.oberdiah.deepcomplexity.evaluation.EvaluationMetrics
 import com.oberdiah.deepcomplexity.evaluation.EvaluatorAssistant
+import com.oberdiah.deepcomplexity.evaluation.Expr
+import com.oberdiah.deepcomplexity.evaluation.ExprPoolMetrics
+import com.oberdiah.deepcomplexity.evaluation.ExprTreeVisitor
 import com.oberdiah.deepcomplexity.evaluation.ExpressionTagger
+import com.oberdiah.deepcomplexity.evaluation.LoopExpr
 import com.oberdiah.deepcomplexity.evaluation.MethodProcessing
+import com.oberdiah.deepcomplexity.evaluation.PileMetrics
+import com.oberdiah.deepcomplexity.evaluation.TracingEvaluatorAssistant
 import com.oberdiah.deepcomplexity.evaluation.VariableExpr
+import com.oberdiah.deepcomplexity.evaluation.WideningMetrics
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
 import com.oberdiah.deepcomplexity.staticAnalysis.ShortIndicator
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Bundle
 import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.utilities.HotPath
 import com.oberdiah.deepcomplexity.utilities.Utilities
 import com.oberdiah.deepcomplexity.utilities.into
 import org.jetbrains.kotlin.analysis.utils.collections.mapToSet
@@ -19,6 +30,17 @@ object TestUtilities {
     private val predictedArray = BooleanArray(Short.MAX_VALUE.toInt() - Short.MIN_VALUE.toInt() + 1)
     private val actualArray = BooleanArray(Short.MAX_VALUE.toInt() - Short.MIN_VALUE.toInt() + 1)
 
+    /**
+     * How many times each of a traced and an untraced evaluation are run to compare the two.
+     */
+    private const val TRACING_COMPARISON_RUNS = 3
+
+    /**
+     * An int variable for tests that build expressions by hand, as it needs no PSI to create. Evaluates to an
+     * unconstrained keyed bundle like any other variable, so can be constrained and compared against.
+     */
+    val intVariable: Expr<Int> = LoopExpr.LoopLeaf.new(ReturnKey(IntIndicator)).castTo(IntIndicator)
+
     data class MethodAnnotationInfo(
         val filePath: String,
         val methodName: String,
@@ -169,6 +191,8 @@ object TestUtilities {
         log: StringBuilder
     ): MethodScoreResults {
         val contextStartTime = System.nanoTime()
+        val poolBefore = ExprPoolMetrics.snapshot()
+        val hotPathBefore = HotPath.snapshot()
         val returnValue = try {
             repeat(System.getenv("NUM_EXTRA_RUNS")?.toIntOrNull() ?: 0) {
                 MethodProcessing.getMethodContext(testInfo.psiMethod)
@@ -190,21 +214,57 @@ object TestUtilities {
         }.returnValue!!.optimise()
 
         log.appendLine("\tMethod processing took ${(System.nanoTime() - contextStartTime) / 1_000_000}ms")
+        log.appendLine((ExprPoolMetrics.snapshot() - poolBefore).toString().prependIndent())
 
         val range = try {
             val evaluationStartTime = System.nanoTime()
+            val wideningsBefore = WideningMetrics.snapshot()
+            val pilesBefore = PileMetrics.snapshot()
             val tags = ExpressionTagger.buildTags(returnValue)
 
             repeat(System.getenv("NUM_EXTRA_RUNS")?.toIntOrNull() ?: 0) {
-                val assistant = EvaluatorAssistant.createInitial(tags)
-                returnValue.evaluate(ConstraintsOrPile.unconstrained(), assistant)
+                returnValue.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial())
             }
 
-            val assistant = EvaluatorAssistant.createInitial(tags)
+            val assistant = TracingEvaluatorAssistant.createInitial(tags)
             val bundle: Bundle<*> = returnValue.evaluate(ConstraintsOrPile.unconstrained(), assistant)
-
             log.appendLine("\tEvaluation took ${(System.nanoTime() - evaluationStartTime) / 1_000_000}ms")
-            log.appendLine(assistant.getCacheReadout().prependIndent())
+            // Taken now so the comparison runs below don't count.
+            val widenings = WideningMetrics.snapshot() - wideningsBefore
+            val piles = PileMetrics.snapshot() - pilesBefore
+            val hotPath = HotPath.snapshot() - hotPathBefore
+
+            // Keep an eye on how much tracing costs us. The two take turns going first so neither always
+            // gets the warmer JIT, and the best of each is what's compared.
+            var tracedNanos = Long.MAX_VALUE
+            var leanNanos = Long.MAX_VALUE
+            lateinit var metrics: EvaluationMetrics.Snapshot
+            repeat(TRACING_COMPARISON_RUNS * 2) { i ->
+                val start = System.nanoTime()
+                if ((i + i / 2) % 2 == 0) {
+                    returnValue.evaluate(ConstraintsOrPile.unconstrained(), TracingEvaluatorAssistant.createInitial(tags))
+                    tracedNanos = minOf(tracedNanos, System.nanoTime() - start)
+                } else {
+                    metrics = returnValue.evaluateWithMetrics(
+                        ConstraintsOrPile.unconstrained(),
+                        EvaluatorAssistant.createInitial()
+                    ).metrics
+                    leanNanos = minOf(leanNanos, System.nanoTime() - start)
+                }
+            }
+            log.appendLine(
+                "\tBest of $TRACING_COMPARISON_RUNS, traced: ${"%.3f".format(tracedNanos / 1e6)}ms, " +
+                        "untraced: ${"%.3f".format(leanNanos / 1e6)}ms"
+            )
+            log.appendLine(metrics.toString().prependIndent())
+            if (widenings.total > 0) {
+                log.appendLine(widenings.toString().prependIndent())
+            }
+            log.appendLine(piles.toString().prependIndent())
+            if (HotPath.ENABLED) {
+                log.appendLine(hotPath.toString().prependIndent())
+                HotPath.drainSlowCalls().forEach { log.appendLine("\t\t$it") }
+            }
             log.appendLine((assistant.getTrace()).prependIndent())
 
             // Good to calculate this after we've done our debug printing, just so if this ends up throwing
@@ -327,7 +387,7 @@ object TestUtilities {
             }
         }
 
-        val expressionSize = returnValue.recursiveSubExprs.size
+        val expressionSize = ExprTreeVisitor.uniqueNodeCount(returnValue)
 
         return MethodRan("$numEntriesCorrect/$numEntriesPredicted", scoreFraction, expressionSize)
     }
@@ -0,0 +1,95 @@
+package com.oberdiah.deepcomplexity
+
+import com.oberdiah.deepcomplexity.context.EvaluationKey
+import com.oberdiah.deepcomplexity.evaluation.*
+import com.oberdiah.deepcomplexity.settings.Settings
+import com.oberdiah.deepcomplexity.staticAnalysis.IntIndicator
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.Constraints
+import com.oberdiah.deepcomplexity.staticAnalysis.constrainedSets.ConstraintsOrPile
+import com.oberdiah.deepcomplexity.staticAnalysis.numberSimplification.NumberUtilities
+import com.oberdiah.deepcomplexity.staticAnalysis.sets.NumberRange
+import com.oberdiah.deepcomplexity.staticAnalysis.sets.NumberSet
+import com.oberdiah.deepcomplexity.staticAnalysis.variances.NumberVariances
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ * Past their limits, structures get wider rather than failing; whatever they lose, they must never lose a
+ * value they could have had.
+ */
+class WideningTest {
+    private fun key(i: Int) = EvaluationKey.ExpressionKey(ConstExpr.new(i, IntIndicator))
+
+    private val x = TestUtilities.intVariable
+
+    @Test
+    fun fillSmallestGapsJoinsAcrossTheNarrowest() {
+        val ranges = listOf(NumberRange.new(0, 1), NumberRange.new(5, 5), NumberRange.new(7, 9))
+        assertEquals(
+            listOf(NumberRange.new(0, 1), NumberRange.new(5, 9)),
+            NumberUtilities.fillSmallestGaps(ranges, 2)
+        )
+        assertEquals(ranges, NumberUtilities.fillSmallestGaps(ranges, 3))
+    }
+
+    @Test
+    fun tooManyRangesStillCoverEveryOriginal() {
+        // Evenly spaced apart from the last, which sits closest to its neighbour.
+        val values = (0 until NumberSet.MAX_RANGES).map { it * 10 } + ((NumberSet.MAX_RANGES - 1) * 10 + 2)
+        val set = values.map { NumberSet.newFromConstant(it) }.reduce { acc, set -> acc.union(set) }
+
+        assertEquals(NumberSet.MAX_RANGES, set.ranges.size)
+        for (value in values) {
+            assertTrue(set.contains(value), "Lost $value from $set")
+        }
+        assertTrue(set.contains(values.last() - 1), "Filled the wrong gap in $set")
+        assertFalse(set.contains(5), "Filled the wrong gap in $set")
+    }
+
+    @Test
+    fun tooManyMultipliersCollapseToASuperset() {
+        // Along with the constant term, one more multiplier than there's room for.
+        val keys = (1..Settings.maxMultipliers).map { key(it) }
+        val sum = keys.map { NumberVariances.newFromVariance(IntIndicator, it) }.reduce { acc, variances ->
+            acc.arithmeticOperation(variances, BinaryNumberOp.ADDITION, Constraints.completelyUnconstrained())
+        }
+        assertEquals(Settings.maxMultipliers - 1, sum.varsTracking().size)
+
+        val constraints = keys.withIndex().fold(Constraints.completelyUnconstrained()) { acc, (i, key) ->
+            acc.withConstraint(key, IntIndicator.newConstantSet(i + 1))
+        }
+        val exactly = (1..Settings.maxMultipliers).sum()
+        assertTrue(sum.collapse(constraints).contains(exactly))
+    }
+
+    @Test
+    fun noNodesGivesTheFullSet() {
+        val budget = AnalysisBudget(maxMillis = 0, maxNodes = 0, maxBundleWidth = Settings.maxBundleWidth)
+        val expr = ArithmeticExpr.new(x, ConstExpr.new(2, IntIndicator), BinaryNumberOp.MULTIPLICATION)
+
+        val bundle = expr.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial(budget = budget))
+        assertTrue(budget.isExhausted)
+        assertEquals(IntIndicator.newFullSet(), bundle.collapse())
+    }
+
+    /**
+     * Anything that finished after the budget ran out may have been widened below, so mustn't outlive
+     * the evaluation that produced it.
+     */
+    @Test
+    fun exhaustedResultsAreNotShared() {
+        val expr = ArithmeticExpr.new(x, ConstExpr.new(2, IntIndicator), BinaryNumberOp.MULTIPLICATION)
+
+        val starved = EvaluationCache(maxWeight = 100)
+        val budget = AnalysisBudget(maxMillis = 0, maxNodes = 1, maxBundleWidth = Settings.maxBundleWidth)
+        expr.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial(starved, budget))
+        assertTrue(budget.isExhausted)
+        assertEquals(0, starved.snapshot().size)
+
+        val fed = EvaluationCache(maxWeight = 100)
+        expr.evaluate(ConstraintsOrPile.unconstrained(), EvaluatorAssistant.createInitial(fed))
+        assertTrue(fed.snapshot().size > 0)
+    }
+}